@@ -0,0 +1,36 @@
+#!/bin/sh
+#
+# Compiles the platform-independent library sources together with the checks and benchmarks in
+# bench/src, and runs them on a plain JVM. bench/src also provides a stand-in for android.util.Log.
+#
+# Usage: bench/run.sh [class ...]
+#
+# Class names are relative to com.arthurpitman.common.data, for example "ProviderBenchmark".
+# Without arguments, all checks (*Check) run first, followed by all benchmarks (*Benchmark).
+# A failing check stops the run with a non-zero exit status. JVM options such as
+# -Dbench.scale=0.1 can be passed in JAVA_OPTS.
+
+set -e
+cd "$(dirname "$0")/.."
+
+OUT=bench/out
+CLASSPATH=libs/android-support-v13.jar
+COMMON=src/com/arthurpitman/common
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -nowarn -encoding UTF-8 -d "$OUT" -cp "$CLASSPATH" \
+	"$COMMON/CoreException.java" "$COMMON/Log.java" "$COMMON/ByteArrayUtils.java" \
+	"$COMMON/ByteArrayWriter.java" "$COMMON/ByteArrayReader.java" \
+	"$COMMON"/data/*.java \
+	$(find bench/src -name '*.java')
+
+if [ $# -eq 0 ]; then
+	set -- $(cd bench/src/com/arthurpitman/common/data && ls *Check.java 2>/dev/null | sed 's/\.java$//') \
+		$(cd bench/src/com/arthurpitman/common/data && ls *Benchmark.java | sed 's/\.java$//')
+fi
+
+for class in "$@"; do
+	echo "== $class"
+	java $JAVA_OPTS -cp "$OUT:$CLASSPATH" "com.arthurpitman.common.data.$class"
+done
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+
+/**
+ * Stand-in for the Android log when running on a plain JVM. Errors and warnings go to standard error,
+ * other messages are dropped so that they do not distort measurements.
+ */
+public class Log {
+
+	public static int i(String tag, String message) {
+		return 0;
+	}
+
+
+	public static int e(String tag, String message) {
+		System.err.println("E/" + tag + ": " + message);
+		return 0;
+	}
+
+
+	public static int d(String tag, String message) {
+		return 0;
+	}
+
+
+	public static int v(String tag, String message) {
+		return 0;
+	}
+
+
+	public static int w(String tag, String message) {
+		System.err.println("W/" + tag + ": " + message);
+		return 0;
+	}
+}
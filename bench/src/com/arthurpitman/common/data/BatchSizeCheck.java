@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import static com.arthurpitman.common.data.Checks.check;
+import static com.arthurpitman.common.data.Checks.checkEquals;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Checks that a {@link BatchSizeController} set on a {@link RemoteProvider} adapts bulk requests to
+ * fast, slow and failing remotes simulated by a {@link FakeStore}.
+ */
+public class BatchSizeCheck {
+
+	private static final int MIN_BATCH_SIZE = 10;
+	private static final int MAX_BATCH_SIZE = 1000;
+
+	/** Target latency of a batch in milliseconds. */
+	private static final long TARGET_LATENCY = 10;
+
+
+	public static void main(String[] args) throws CoreException {
+		growsOnFastRemote();
+		shrinksOnSlowRemote();
+		shrinksOnFailures();
+		keepsCompletedBatches();
+		System.out.println("BatchSizeCheck passed");
+	}
+
+
+	/**
+	 * On a remote where latency is dominated by the per-call overhead, the batch size grows to the maximum.
+	 * @throws CoreException
+	 */
+	private static void growsOnFastRemote() throws CoreException {
+		FakeRemoteProvider provider = createProvider(50, 20000);
+		provider.getRemoteStore().setLatency(200000, 2000);
+		BatchSizeController controller = provider.getBatchSizeController();
+
+		checkEquals(20000, provider.get(range(0, 20000), RemoteProvider.SCOPE_ALL).size(), "objects retrieved");
+		check(provider.getRemoteStore().getLargestBulkCall() <= MAX_BATCH_SIZE, "batch above the maximum");
+		check(controller.getBatchSize() >= MAX_BATCH_SIZE / 2,
+				"batch size " + controller.getBatchSize() + " did not grow towards the maximum");
+		check(controller.getThroughput() > 0, "no throughput recorded");
+	}
+
+
+	/**
+	 * On a remote where each object adds latency, the batch size settles where a batch takes about
+	 * the target latency: 1 ms plus 40 us per object allows about 225 objects within 10 ms.
+	 * @throws CoreException
+	 */
+	private static void shrinksOnSlowRemote() throws CoreException {
+		FakeRemoteProvider provider = createProvider(MAX_BATCH_SIZE, 10000);
+		FakeStore remote = provider.getRemoteStore();
+		remote.setLatency(1000000, 40000);
+		BatchSizeController controller = provider.getBatchSizeController();
+
+		provider.get(range(0, 5000), RemoteProvider.SCOPE_ALL);
+		remote.resetCounters();
+		checkEquals(5000, provider.get(range(5000, 5000), RemoteProvider.SCOPE_ALL).size(), "objects retrieved");
+		int batchSize = controller.getBatchSize();
+		check((batchSize >= 100) && (batchSize <= 260), "batch size " + batchSize + " did not settle near 225");
+		check(remote.getLargestBulkCall() <= 260,
+				"batch of " + remote.getLargestBulkCall() + " after settling exceeds the target latency");
+	}
+
+
+	/**
+	 * Failing requests shrink the batch size to the minimum, and it grows again once requests succeed.
+	 * @throws CoreException
+	 */
+	private static void shrinksOnFailures() throws CoreException {
+		FakeRemoteProvider provider = createProvider(MAX_BATCH_SIZE, 10000);
+		FakeStore remote = provider.getRemoteStore();
+		BatchSizeController controller = provider.getBatchSizeController();
+
+		remote.setFailureRate(1);
+		for (int i = 0; i < 10; i++) {
+			try {
+				provider.get(range(i * 100, 2000), RemoteProvider.SCOPE_ALL);
+				throw new AssertionError("request did not fail");
+			} catch (CoreException e) {
+				// expected
+			}
+		}
+		checkEquals(MIN_BATCH_SIZE, controller.getBatchSize(), "batch size after failures");
+
+		remote.setFailureRate(0);
+		remote.setLatency(200000, 2000);
+		provider.get(range(0, 10000), RemoteProvider.SCOPE_ALL);
+		check(controller.getBatchSize() > 4 * MIN_BATCH_SIZE,
+				"batch size " + controller.getBatchSize() + " did not recover after failures");
+	}
+
+
+	/**
+	 * When a later batch fails, the objects of the completed batches are stored and cached, and only
+	 * the remaining objects are requested again.
+	 * @throws CoreException
+	 */
+	private static void keepsCompletedBatches() throws CoreException {
+		FakeRemoteProvider provider = createProvider(100, 1000);
+		provider.setBatchSizeController(new BatchSizeController(100, 100, 100, 0));
+		FakeStore local = provider.getLocalStore();
+		FakeStore remote = provider.getRemoteStore();
+
+		remote.failBulkCall(4);
+		try {
+			provider.get(range(0, 1000), RemoteProvider.SCOPE_ALL);
+			throw new AssertionError("request did not fail");
+		} catch (CoreException e) {
+			// expected
+		}
+		provider.flush();
+		checkEquals(4, remote.getBulkCalls(), "bulk requests before the failure");
+		checkEquals(300, local.getIds().size(), "objects stored after the failure");
+		checkEquals(300, provider.get(range(0, 1000), RemoteProvider.SCOPE_LOCAL).size(), "objects available locally");
+
+		remote.resetCounters();
+		checkEquals(1000, provider.get(range(0, 1000), RemoteProvider.SCOPE_ALL).size(), "objects after retrying");
+		checkEquals(700, remote.getObjectsRead(), "objects requested again");
+	}
+
+
+	/**
+	 * Creates a provider with a batch size controller and a populated remote without latency.
+	 * @param initialBatchSize
+	 * @param count number of remote objects.
+	 * @return
+	 */
+	private static FakeRemoteProvider createProvider(int initialBatchSize, int count) {
+		FakeRemoteProvider provider = new FakeRemoteProvider(count, new FakeStore(), new FakeStore());
+		provider.getRemoteStore().populate(0, count);
+		provider.setBatchSizeController(
+				new BatchSizeController(initialBatchSize, MIN_BATCH_SIZE, MAX_BATCH_SIZE, TARGET_LATENCY));
+		return provider;
+	}
+
+
+	/**
+	 * Creates a sorted range of ids.
+	 * @param first
+	 * @param count
+	 * @return
+	 */
+	private static IdSet range(long first, int count) {
+		IdSet ids = new IdSet(count);
+		for (long id = first; id < first + count; id++) {
+			ids.add(id);
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * An object with a typical mix of fields, used by the checks and benchmarks.
+ */
+public class BenchObject extends IdObject {
+
+	public final long version;
+	public final String name;
+	public final String description;
+	public final double score;
+	public final int flags;
+	public final long[] tags;
+
+
+	/**
+	 * Creates a new BenchObject.
+	 * @param id
+	 * @param version
+	 * @param name
+	 * @param description may be null.
+	 * @param score
+	 * @param flags
+	 * @param tags may be null.
+	 */
+	public BenchObject(long id, long version, String name, String description, double score, int flags,
+			long[] tags) {
+		super(id);
+		this.version = version;
+		this.name = name;
+		this.description = description;
+		this.score = score;
+		this.flags = flags;
+		this.tags = tags;
+	}
+
+
+	/**
+	 * Creates a BenchObject with generated field values.
+	 * @param id
+	 * @param version
+	 * @return
+	 */
+	public static BenchObject create(long id, long version) {
+		long[] tags = new long[(int) (id % 5)];
+		for (int i = 0; i < tags.length; i++) {
+			tags[i] = id * 31 + i;
+		}
+		String description = ((id % 3) == 0) ? null : "Description of object " + id + ", version " + version;
+		return new BenchObject(id, version, "Object " + id, description, id * 0.25, (int) (id & 0xFF), tags);
+	}
+
+
+	/**
+	 * Copies the object, including the stale flag and fetch time, as storage would when loading it.
+	 * @return
+	 */
+	public BenchObject copy() {
+		BenchObject o = new BenchObject(id, version, name, description, score, flags, tags);
+		o.setStale(stale);
+		o.setFetchTime(fetchTime);
+		return o;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import com.arthurpitman.common.ByteArrayReader;
+import com.arthurpitman.common.ByteArrayWriter;
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Encodes {@link BenchObject BenchObjects}, as an application would write its own codec.
+ */
+public class BenchObjectCodec extends IdObjectCodec<BenchObject> {
+
+	@Override
+	protected void write(BenchObject o, ByteArrayWriter writer) {
+		writer.writeSignedVarLong(o.version);
+		writer.writeString(o.name);
+		writer.writeString(o.description);
+		writer.writeDouble(o.score);
+		writer.writeInt(o.flags);
+		writer.writeLongArray(o.tags);
+	}
+
+
+	@Override
+	protected BenchObject read(long id, ByteArrayReader reader) throws CoreException {
+		long version = reader.readSignedVarLong();
+		String name = reader.readString();
+		String description = reader.readString();
+		double score = reader.readDouble();
+		int flags = reader.readInt();
+		long[] tags = reader.readLongArray();
+		return new BenchObject(id, version, name, description, score, flags, tags);
+	}
+}
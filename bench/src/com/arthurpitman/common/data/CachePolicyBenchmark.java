@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * Replays access traces against a {@link ProviderCache} with plain LRU and with a {@link FrequencyCachePolicy}.
+ * <p/>
+ * Each access looks the id up and, on a miss, offers a new object, as the providers do. For every trace
+ * and cache size the hit ratio is printed, and for traces with a scan, the number of scanned ids that
+ * were admitted to the cache.
+ * <p/>
+ * Without arguments, synthetic traces are replayed: a hot working set interrupted by a long one-off scan,
+ * zipfian access, zipfian access with periodic scans, and a loop slightly larger than the cache.
+ * Recorded traces can be replayed by passing files with one id per line.
+ */
+public class CachePolicyBenchmark {
+
+	/** Ids at or above this value belong to scans. */
+	private static final long SCAN_BASE = 1L << 40;
+
+	private static final int[] CACHE_SIZES = { 100, 1000 };
+
+
+	public static void main(String[] args) throws IOException {
+		System.out.println(String.format(Locale.US, "%-24s %6s %9s %8s %8s %14s %14s",
+				"trace", "cache", "accesses", "lru%", "freq%", "lru scan adm", "freq scan adm"));
+
+		if (args.length > 0) {
+			for (String path : args) {
+				long[] trace = readTrace(new File(path));
+				for (int cacheSize : CACHE_SIZES) {
+					compare(new File(path).getName(), trace, cacheSize);
+				}
+			}
+			return;
+		}
+
+		for (int cacheSize : CACHE_SIZES) {
+			compare("hot set + scan", hotSetWithScan(cacheSize), cacheSize);
+			compare("zipfian", zipfian(cacheSize, 0), cacheSize);
+			compare("zipfian + scans", zipfian(cacheSize, 5), cacheSize);
+			compare("loop", loop(cacheSize), cacheSize);
+		}
+	}
+
+
+	/**
+	 * Replays a trace with both policies and prints the results.
+	 * @param name
+	 * @param trace
+	 * @param cacheSize
+	 */
+	private static void compare(String name, long[] trace, int cacheSize) {
+		long[] lru = replay(trace, cacheSize, null);
+		long[] frequency = replay(trace, cacheSize, new FrequencyCachePolicy(cacheSize));
+		long scans = countScanIds(trace);
+		System.out.println(String.format(Locale.US, "%-24s %6d %9d %8.2f %8.2f %14s %14s",
+				name, cacheSize, trace.length, lru[0] * 100.0 / trace.length, frequency[0] * 100.0 / trace.length,
+				(scans == 0) ? "-" : lru[1] + "/" + scans, (scans == 0) ? "-" : frequency[1] + "/" + scans));
+	}
+
+
+	/**
+	 * Replays a trace.
+	 * @param trace
+	 * @param cacheSize
+	 * @param policy the policy, or null for plain LRU.
+	 * @return the number of hits and the number of admitted scan ids.
+	 */
+	private static long[] replay(long[] trace, int cacheSize, CachePolicy policy) {
+		ProviderCache<IdObject> cache = new ProviderCache<IdObject>(cacheSize, new ProviderStats());
+		cache.setPolicy(policy);
+		long hits = 0;
+		long scanAdmissions = 0;
+		for (long id : trace) {
+			if (cache.lookup(id) != null) {
+				hits++;
+			} else if (cache.offer(new IdObject(id)) && (id >= SCAN_BASE)) {
+				scanAdmissions++;
+			}
+		}
+		return new long[] { hits, scanAdmissions };
+	}
+
+
+	/**
+	 * Creates a trace of a hot working set of half the cache size, interrupted by a scan of 50 times
+	 * the cache size in which every 5th access goes to the working set.
+	 * @param cacheSize
+	 * @return
+	 */
+	private static long[] hotSetWithScan(int cacheSize) {
+		int hotSet = cacheSize / 2;
+		int warm = 20 * cacheSize;
+		int scan = 50 * cacheSize;
+		long[] trace = new long[warm + scan + scan / 4 + warm];
+		Random random = new Random(1);
+		int n = 0;
+		for (int i = 0; i < warm; i++) {
+			trace[n++] = random.nextInt(hotSet);
+		}
+		for (int i = 0; i < scan; i++) {
+			trace[n++] = SCAN_BASE + i;
+			if ((i % 4) == 3) {
+				trace[n++] = random.nextInt(hotSet);
+			}
+		}
+		while (n < trace.length) {
+			trace[n++] = random.nextInt(hotSet);
+		}
+		return trace;
+	}
+
+
+	/**
+	 * Creates a zipfian trace over 100 times the cache size of ids, optionally interrupted by scans.
+	 * @param cacheSize
+	 * @param scans number of scans of 10 times the cache size each.
+	 * @return
+	 */
+	private static long[] zipfian(int cacheSize, int scans) {
+		int accesses = 200 * cacheSize;
+		int scanLength = 10 * cacheSize;
+		ZipfGenerator generator = new ZipfGenerator(0, 100 * cacheSize, 0.9, 2);
+		long[] trace = new long[accesses + scans * scanLength];
+		int n = 0;
+		int interval = accesses / (scans + 1);
+		long scanId = SCAN_BASE;
+		for (int i = 0; i < accesses; i++) {
+			trace[n++] = generator.next();
+			if ((scans > 0) && (i > 0) && ((i % interval) == 0) && (i / interval <= scans)) {
+				for (int j = 0; j < scanLength; j++) {
+					trace[n++] = scanId++;
+				}
+			}
+		}
+		return Arrays.copyOf(trace, n);
+	}
+
+
+	/**
+	 * Creates a trace that repeatedly loops over 1.5 times the cache size of ids, where LRU never hits.
+	 * @param cacheSize
+	 * @return
+	 */
+	private static long[] loop(int cacheSize) {
+		int length = cacheSize * 3 / 2;
+		long[] trace = new long[100 * cacheSize];
+		for (int i = 0; i < trace.length; i++) {
+			trace[i] = i % length;
+		}
+		return trace;
+	}
+
+
+	/**
+	 * Counts the accesses of a trace that belong to scans.
+	 * @param trace
+	 * @return
+	 */
+	private static long countScanIds(long[] trace) {
+		long count = 0;
+		for (long id : trace) {
+			if (id >= SCAN_BASE) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Reads a trace with one id per line, ignoring empty lines and lines starting with #.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static long[] readTrace(File file) throws IOException {
+		long[] trace = new long[1024];
+		int n = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if ((line.length() == 0) || line.startsWith("#")) {
+					continue;
+				}
+				if (n == trace.length) {
+					trace = Arrays.copyOf(trace, n * 2);
+				}
+				trace[n++] = Long.parseLong(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return Arrays.copyOf(trace, n);
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * Assertions used by the checks, which run without a test framework.
+ */
+public class Checks {
+
+	/**
+	 * Fails if a condition is false.
+	 * @param condition
+	 * @param message
+	 */
+	public static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+
+	/**
+	 * Fails if two values differ.
+	 * @param expected
+	 * @param actual
+	 * @param message
+	 */
+	public static void checkEquals(long expected, long actual, String message) {
+		if (expected != actual) {
+			throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+		}
+	}
+}
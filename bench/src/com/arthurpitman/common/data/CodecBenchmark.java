@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.arthurpitman.common.ByteArrayUtils;
+import com.arthurpitman.common.ByteArrayWriter;
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Compares encoding and decoding {@link BenchObject BenchObjects} with an {@link IdObjectCodec} against
+ * mapping them column by column, as an application storing objects in SQLite would.
+ * <p/>
+ * The column-mapped path is emulated on the JVM: writing fills a map of column names to boxed values, as
+ * {@code ContentValues} does, and reading looks up column indexes by name once per batch and then reads
+ * each column of a row, as code reading a {@code Cursor} does. Tags are stored in a blob column.
+ * <p/>
+ * All operations are warmed up before any is measured. Operations are batches of {@value #BATCH} objects;
+ * throughput and allocations are printed per object.
+ * The amount of work can be scaled with the system property {@code bench.scale} (default 1).
+ */
+public class CodecBenchmark {
+
+	/**
+	 * An operation on a batch of objects.
+	 */
+	private interface Operation {
+		void run(int first) throws CoreException;
+	}
+
+
+	/**
+	 * A row of a cursor. As in a {@code CursorWindow}, text is held as UTF-8 and converted to a new String
+	 * when read, and blobs are copied when read.
+	 */
+	private static class Row {
+		private final HashMap<String, Integer> columnIndexes;
+		private final Object[] values;
+
+
+		public Row(HashMap<String, Integer> columnIndexes, Object[] values) {
+			this.columnIndexes = columnIndexes;
+			this.values = values;
+		}
+
+
+		public int getColumnIndex(String name) {
+			Integer index = columnIndexes.get(name);
+			return (index == null) ? -1 : index;
+		}
+
+
+		public long getLong(int column) {
+			return ((Number) values[column]).longValue();
+		}
+
+
+		public int getInt(int column) {
+			return ((Number) values[column]).intValue();
+		}
+
+
+		public double getDouble(int column) {
+			return ((Number) values[column]).doubleValue();
+		}
+
+
+		public String getString(int column) {
+			byte[] bytes = (byte[]) values[column];
+			return (bytes == null) ? null : new String(bytes, UTF_8);
+		}
+
+
+		public byte[] getBlob(int column) {
+			byte[] bytes = (byte[]) values[column];
+			return (bytes == null) ? null : bytes.clone();
+		}
+	}
+
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String[] COLUMNS = { "_id", "version", "name", "description", "score", "flags", "tags" };
+	private static final int BATCH = 100;
+	private static final int WARM_UP_PASSES = 3;
+	private static final int PASSES = 5;
+	private static final double SCALE = Double.parseDouble(System.getProperty("bench.scale", "1"));
+
+	private static final BenchObjectCodec CODEC = new BenchObjectCodec();
+
+	private static long sink;
+
+
+	public static void main(String[] args) throws CoreException {
+		final int n = Math.max((int) (100000 * SCALE) / BATCH, 1) * BATCH;
+		final BenchObject[] objects = new BenchObject[n];
+		final byte[][] encoded = new byte[n][];
+		final Row[] rows = new Row[n];
+		HashMap<String, Integer> columnIndexes = new HashMap<String, Integer>();
+		for (int i = 0; i < COLUMNS.length; i++) {
+			columnIndexes.put(COLUMNS[i], i);
+		}
+		long codecBytes = 0;
+		long columnBytes = 0;
+		for (int i = 0; i < n; i++) {
+			objects[i] = BenchObject.create(i, i % 7);
+			encoded[i] = CODEC.encode(objects[i]);
+			rows[i] = new Row(columnIndexes, toRow(toContentValues(objects[i])));
+			codecBytes += encoded[i].length;
+			columnBytes += getColumnBytes(rows[i]);
+		}
+
+		System.out.println(String.format(Locale.US, "%d objects, %.1f bytes per object encoded, %.1f in columns",
+				n, (double) codecBytes / n, (double) columnBytes / n));
+		System.out.println(String.format(Locale.US, "%-24s %11s %10s %10s %10s",
+				"operation", "objects/s", "p50 us", "p99 us", "B/object"));
+
+		LinkedHashMap<String, Operation> operations = new LinkedHashMap<String, Operation>();
+		final ByteArrayWriter writer = new ByteArrayWriter();
+		operations.put("codec encode, reused", new Operation() {
+			@Override
+			public void run(int first) {
+				for (int i = first; i < first + BATCH; i++) {
+					writer.reset();
+					CODEC.encode(objects[i], writer);
+					sink += writer.size();
+				}
+			}
+		});
+		operations.put("codec encode", new Operation() {
+			@Override
+			public void run(int first) {
+				for (int i = first; i < first + BATCH; i++) {
+					sink += CODEC.encode(objects[i]).length;
+				}
+			}
+		});
+		operations.put("column encode", new Operation() {
+			@Override
+			public void run(int first) {
+				for (int i = first; i < first + BATCH; i++) {
+					sink += toContentValues(objects[i]).size();
+				}
+			}
+		});
+		operations.put("codec decode", new Operation() {
+			@Override
+			public void run(int first) throws CoreException {
+				for (int i = first; i < first + BATCH; i++) {
+					sink += CODEC.decode(i, encoded[i]).flags;
+				}
+			}
+		});
+		operations.put("column decode", new Operation() {
+			@Override
+			public void run(int first) {
+				Row row = rows[first];
+				int idColumn = row.getColumnIndex("_id");
+				int versionColumn = row.getColumnIndex("version");
+				int nameColumn = row.getColumnIndex("name");
+				int descriptionColumn = row.getColumnIndex("description");
+				int scoreColumn = row.getColumnIndex("score");
+				int flagsColumn = row.getColumnIndex("flags");
+				int tagsColumn = row.getColumnIndex("tags");
+				for (int i = first; i < first + BATCH; i++) {
+					row = rows[i];
+					BenchObject o = new BenchObject(row.getLong(idColumn), row.getLong(versionColumn),
+							row.getString(nameColumn), row.getString(descriptionColumn), row.getDouble(scoreColumn),
+							row.getInt(flagsColumn), ByteArrayUtils.convertByteArrayToLongArray(row.getBlob(tagsColumn)));
+					sink += o.flags;
+				}
+			}
+		});
+
+		for (Operation operation : operations.values()) {
+			for (int pass = 0; pass < WARM_UP_PASSES; pass++) {
+				run(operation, n, null);
+			}
+		}
+		for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+			Measurement m = new Measurement();
+			m.start();
+			for (int pass = 0; pass < PASSES; pass++) {
+				run(entry.getValue(), n, m);
+			}
+			m.stop();
+			System.out.println(String.format(Locale.US, "%-24s %11.0f %10.1f %10.1f %10d",
+					entry.getKey(), m.getThroughput() * BATCH, m.getPercentile(50) / 1e3, m.getPercentile(99) / 1e3,
+					m.getAllocatedPerOperation() / BATCH));
+		}
+	}
+
+
+	/**
+	 * Runs an operation over all objects once.
+	 * @param operation
+	 * @param n number of objects.
+	 * @param m measurement to record the batches in, or null to only warm up.
+	 * @throws CoreException
+	 */
+	private static void run(Operation operation, int n, Measurement m) throws CoreException {
+		for (int first = 0; first < n; first += BATCH) {
+			long start = System.nanoTime();
+			operation.run(first);
+			if (m != null) {
+				m.record(System.nanoTime() - start);
+			}
+		}
+	}
+
+
+	/**
+	 * Maps an object to columns.
+	 * @param o
+	 * @return
+	 */
+	private static HashMap<String, Object> toContentValues(BenchObject o) {
+		HashMap<String, Object> values = new HashMap<String, Object>(COLUMNS.length * 2);
+		values.put("_id", o.getId());
+		values.put("version", o.version);
+		values.put("name", o.name);
+		values.put("description", o.description);
+		values.put("score", o.score);
+		values.put("flags", o.flags);
+		values.put("tags", ByteArrayUtils.convertLongArrayToByteArray(o.tags));
+		return values;
+	}
+
+
+	/**
+	 * Orders mapped columns as a cursor returns them, converting text to UTF-8.
+	 * @param values
+	 * @return
+	 */
+	private static Object[] toRow(HashMap<String, Object> values) {
+		Object[] row = new Object[COLUMNS.length];
+		for (int i = 0; i < COLUMNS.length; i++) {
+			Object value = values.get(COLUMNS[i]);
+			row[i] = (value instanceof String) ? ((String) value).getBytes(UTF_8) : value;
+		}
+		return row;
+	}
+
+
+	/**
+	 * Estimates the bytes taken by the values of a row, as SQLite stores them: integers and floats in
+	 * 8 bytes, text and blobs in their length.
+	 * @param row
+	 * @return
+	 */
+	private static long getColumnBytes(Row row) {
+		long bytes = 0;
+		for (Object value : row.values) {
+			if (value instanceof byte[]) {
+				bytes += ((byte[]) value).length;
+			} else if (value != null) {
+				bytes += 8;
+			}
+		}
+		return bytes;
+	}
+}
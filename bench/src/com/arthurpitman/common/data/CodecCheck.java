@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import static com.arthurpitman.common.data.Checks.check;
+import static com.arthurpitman.common.data.Checks.checkEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.arthurpitman.common.ByteArrayWriter;
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Checks that objects survive a round trip through an {@link IdObjectCodec} and a {@link MappedStore}.
+ */
+public class CodecCheck {
+
+	private static final BenchObjectCodec CODEC = new BenchObjectCodec();
+
+
+	public static void main(String[] args) throws CoreException, IOException {
+		roundTrips();
+		roundTripsExtremes();
+		reusesWriter();
+		rejectsTruncatedData();
+		roundTripsThroughMappedStore();
+		System.out.println("CodecCheck passed");
+	}
+
+
+	/**
+	 * Generated objects, including ones with a null description and empty tags, decode to equal objects.
+	 * @throws CoreException
+	 */
+	private static void roundTrips() throws CoreException {
+		for (long id = 0; id < 1000; id++) {
+			BenchObject o = BenchObject.create(id, id * 7);
+			checkSame(o, CODEC.decode(id, CODEC.encode(o)));
+		}
+	}
+
+
+	/**
+	 * Extreme and unusual field values decode to equal objects.
+	 * @throws CoreException
+	 */
+	private static void roundTripsExtremes() throws CoreException {
+		BenchObject[] objects = {
+				new BenchObject(Long.MAX_VALUE, Long.MAX_VALUE, "", null, Double.NaN, Integer.MIN_VALUE, null),
+				new BenchObject(Long.MIN_VALUE, Long.MIN_VALUE, null, "", Double.NEGATIVE_INFINITY, -1, new long[0]),
+				new BenchObject(-1, -1, "\u00fcml\u00e4ut \u4e2d\u6587 \ud83d\ude00", "\u0000",
+						-0.0, Integer.MAX_VALUE, new long[] { Long.MIN_VALUE, 0, Long.MAX_VALUE }),
+				new BenchObject(0, 0, createString(100000), createString(70000), Double.MIN_VALUE, 0,
+						new long[10000])
+		};
+		for (BenchObject o : objects) {
+			checkSame(o, CODEC.decode(o.getId(), CODEC.encode(o)));
+		}
+	}
+
+
+	/**
+	 * Objects encoded one after another into a reused writer decode from their part of the backing array.
+	 * @throws CoreException
+	 */
+	private static void reusesWriter() throws CoreException {
+		ByteArrayWriter writer = new ByteArrayWriter();
+		int[] offsets = new int[101];
+		for (int i = 0; i < 100; i++) {
+			offsets[i] = writer.size();
+			CODEC.encode(BenchObject.create(i, 1), writer);
+		}
+		offsets[100] = writer.size();
+		byte[] bytes = writer.getBackingArray();
+		for (int i = 0; i < 100; i++) {
+			checkSame(BenchObject.create(i, 1), CODEC.decode(i, bytes, offsets[i], offsets[i + 1] - offsets[i]));
+		}
+
+		writer.reset();
+		checkEquals(0, writer.size(), "size after reset");
+		CODEC.encode(BenchObject.create(4, 2), writer);
+		checkSame(BenchObject.create(4, 2), CODEC.decode(4, writer.toByteArray()));
+	}
+
+
+	/**
+	 * Every truncation of an encoded object throws a CoreException.
+	 */
+	private static void rejectsTruncatedData() {
+		for (long id = 1; id < 10; id++) {
+			byte[] bytes = CODEC.encode(BenchObject.create(id, 3));
+			for (int length = 0; length < bytes.length; length++) {
+				try {
+					CODEC.decode(id, bytes, 0, length);
+					throw new AssertionError("object " + id + " truncated to " + length + " of " + bytes.length
+							+ " bytes was decoded");
+				} catch (CoreException e) {
+					// expected
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Objects written to a MappedStore, replaced, removed and compacted read back equal after reopening.
+	 * @throws CoreException
+	 * @throws IOException
+	 */
+	private static void roundTripsThroughMappedStore() throws CoreException, IOException {
+		File file = File.createTempFile("codec-check", ".store");
+		try {
+			int n = 10000;
+			MappedStore<BenchObject> store = new MappedStore<BenchObject>(file, CODEC);
+			for (long id = 0; id < n; id++) {
+				store.put(BenchObject.create(id, 1));
+			}
+			for (long id = 0; id < n; id += 10) {
+				store.put(BenchObject.create(id, 2));
+			}
+			for (long id = 5; id < n; id += 10) {
+				store.remove(id);
+			}
+			store.close();
+
+			store = new MappedStore<BenchObject>(file, CODEC);
+			checkStored(store, n);
+			store.compact();
+			store.close();
+
+			store = new MappedStore<BenchObject>(file, CODEC);
+			checkStored(store, n);
+			store.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+
+	/**
+	 * Checks the contents of the store written by {@link #roundTripsThroughMappedStore()}.
+	 * @param store
+	 * @param n
+	 * @throws CoreException
+	 */
+	private static void checkStored(MappedStore<BenchObject> store, int n) throws CoreException {
+		checkEquals(n - n / 10, store.size(), "stored objects");
+		IdSet ids = new IdSet(n);
+		for (long id = n - 1; id >= 0; id--) {
+			ids.add(id);
+		}
+		List<BenchObject> objects = store.get(ids);
+		checkEquals(n - n / 10, objects.size(), "objects read");
+		int i = 0;
+		for (long id = 0; id < n; id++) {
+			if ((id % 10) == 5) {
+				check(store.get(id) == null, "removed object " + id + " was read");
+				continue;
+			}
+			BenchObject expected = BenchObject.create(id, ((id % 10) == 0) ? 2 : 1);
+			checkSame(expected, store.get(id));
+			checkSame(expected, objects.get(i++));
+		}
+	}
+
+
+	/**
+	 * Checks that two objects have the same id and fields.
+	 * @param expected
+	 * @param actual
+	 */
+	private static void checkSame(BenchObject expected, BenchObject actual) {
+		String name = "object " + expected.getId();
+		check(actual != null, name + " is missing");
+		checkEquals(expected.getId(), actual.getId(), name + " id");
+		checkEquals(expected.version, actual.version, name + " version");
+		check(equal(expected.name, actual.name), name + " name");
+		check(equal(expected.description, actual.description), name + " description");
+		checkEquals(Double.doubleToRawLongBits(expected.score), Double.doubleToRawLongBits(actual.score),
+				name + " score");
+		checkEquals(expected.flags, actual.flags, name + " flags");
+		check(Arrays.equals(expected.tags, actual.tags), name + " tags");
+	}
+
+
+	/**
+	 * Compares two Strings that may be null.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static boolean equal(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+
+	/**
+	 * Creates a String of mixed one, two and three byte characters.
+	 * @param length
+	 * @return
+	 */
+	private static String createString(int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ((i % 3 == 0) ? 'a' + i % 26 : (i % 3 == 1) ? 0xe0 + i % 32 : 0x4e00 + i % 1000));
+		}
+		return builder.toString();
+	}
+}
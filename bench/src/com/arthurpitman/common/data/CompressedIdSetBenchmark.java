@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * Compares {@link CompressedIdSet} with sorted {@link IdSet IdSets} of 10k to 1M ids.
+ * <p/>
+ * For dense ids (gaps of 1 to 4) and sparse ids (gaps of up to 2^32), one row per class prints the bytes
+ * per id, the time of a {@code contains} lookup, and the time per id of iterating and of the union,
+ * intersection and difference with a second set that shares every other id.
+ */
+public class CompressedIdSetBenchmark {
+
+	/**
+	 * A timed task.
+	 */
+	private interface Task {
+		void run();
+	}
+
+
+	private static final int[] SIZES = { 10000, 100000, 1000000 };
+	private static final long[] MAX_GAPS = { 4, 1L << 32 };
+	private static final int PROBES = 4096;
+
+	/** Minimum time in nanoseconds each measurement is repeated for. */
+	private static final long MIN_TIME = 100000000L;
+
+	private static long sink;
+
+
+	public static void main(String[] args) {
+		System.out.println(String.format(Locale.US, "%-7s %8s %-11s %8s %12s %13s %13s %13s %13s",
+				"ids", "size", "class", "B/id", "contains ns", "iterate ns/id", "union ns/id", "inters. ns/id",
+				"diff. ns/id"));
+		for (long maxGap : MAX_GAPS) {
+			for (int size : SIZES) {
+				run(maxGap, size);
+			}
+		}
+	}
+
+
+	/**
+	 * Measures one size and density of ids.
+	 * @param maxGap
+	 * @param size
+	 */
+	private static void run(long maxGap, final int size) {
+		Random random = new Random(size);
+		final IdSet a = CompressedIdSetCheck.createIds(random, size, maxGap);
+		final IdSet b = interleave(a);
+		final CompressedIdSet ca = CompressedIdSet.fromIdSet(a);
+		final CompressedIdSet cb = CompressedIdSet.fromIdSet(b);
+		final long[] probes = new long[PROBES];
+		for (int i = 0; i < PROBES; i++) {
+			long id = a.get(random.nextInt(size));
+			probes[i] = ((i & 1) == 0) ? id : id + 1;
+		}
+		String ids = (maxGap <= 4) ? "dense" : "sparse";
+		final int sizeB = b.size();
+
+		double contains = time(PROBES, new Task() {
+			@Override
+			public void run() {
+				for (long id : probes) {
+					if (a.contains(id)) {
+						sink++;
+					}
+				}
+			}
+		});
+		double iterate = time(size, new Task() {
+			@Override
+			public void run() {
+				for (int i = 0; i < size; i++) {
+					sink += a.get(i);
+				}
+			}
+		});
+		double union = time(size + sizeB, new Task() {
+			@Override
+			public void run() {
+				sink += IdSet.union(a, b).size();
+			}
+		});
+		double intersection = time(size + sizeB, new Task() {
+			@Override
+			public void run() {
+				sink += IdSet.intersection(a, b).size();
+			}
+		});
+		double difference = time(size + sizeB, new Task() {
+			@Override
+			public void run() {
+				sink += IdSet.difference(a, b).size();
+			}
+		});
+		print(ids, size, "IdSet", 8.0, contains, iterate, union, intersection, difference);
+
+		contains = time(PROBES, new Task() {
+			@Override
+			public void run() {
+				for (long id : probes) {
+					if (ca.contains(id)) {
+						sink++;
+					}
+				}
+			}
+		});
+		iterate = time(size, new Task() {
+			@Override
+			public void run() {
+				CompressedIdSet.IdIterator iterator = ca.iterator();
+				while (iterator.hasNext()) {
+					sink += iterator.next();
+				}
+			}
+		});
+		union = time(size + sizeB, new Task() {
+			@Override
+			public void run() {
+				sink += CompressedIdSet.union(ca, cb).size();
+			}
+		});
+		intersection = time(size + sizeB, new Task() {
+			@Override
+			public void run() {
+				sink += CompressedIdSet.intersection(ca, cb).size();
+			}
+		});
+		difference = time(size + sizeB, new Task() {
+			@Override
+			public void run() {
+				sink += CompressedIdSet.difference(ca, cb).size();
+			}
+		});
+		print(ids, size, "Compressed", (double) ca.getEncodedSize() / size, contains, iterate, union, intersection,
+				difference);
+	}
+
+
+	/**
+	 * Prints a row of results.
+	 * @param ids
+	 * @param size
+	 * @param name
+	 * @param bytesPerId
+	 * @param contains
+	 * @param iterate
+	 * @param union
+	 * @param intersection
+	 * @param difference
+	 */
+	private static void print(String ids, int size, String name, double bytesPerId, double contains, double iterate,
+			double union, double intersection, double difference) {
+		System.out.println(String.format(Locale.US, "%-7s %8d %-11s %8.2f %12.1f %13.2f %13.2f %13.2f %13.2f",
+				ids, size, name, bytesPerId, contains, iterate, union, intersection, difference));
+	}
+
+
+	/**
+	 * Creates a set that shares every other id of a sorted set and has new ids in between where possible.
+	 * @param ids
+	 * @return
+	 */
+	private static IdSet interleave(IdSet ids) {
+		int size = ids.size();
+		IdSet result = new IdSet(size);
+		for (int i = 0; i < size; i++) {
+			long id = ids.get(i);
+			if ((i & 1) == 0) {
+				result.add(id);
+			} else {
+				long between = ids.get(i - 1) + (id - ids.get(i - 1)) / 2;
+				if (between > ids.get(i - 1)) {
+					result.add(between);
+				}
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Repeats a task until the minimum time has passed, after a warm-up.
+	 * @param count number of operations or ids processed by each run.
+	 * @param task
+	 * @return nanoseconds per operation or id.
+	 */
+	private static double time(int count, Task task) {
+		for (int i = 0; i < 3; i++) {
+			task.run();
+		}
+		long runs = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			task.run();
+			runs++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < MIN_TIME);
+		return (double) elapsed / runs / count;
+	}
+}
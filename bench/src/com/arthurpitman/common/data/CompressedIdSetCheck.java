@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import static com.arthurpitman.common.data.Checks.check;
+import static com.arthurpitman.common.data.Checks.checkEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Checks {@link CompressedIdSet} against {@link IdSet}, and that {@link CompressedIdSet#fromByteArray(byte[])}
+ * rejects invalid input.
+ */
+public class CompressedIdSetCheck {
+
+	private static final int MAGIC = 0x43494453;
+
+
+	public static void main(String[] args) throws CoreException {
+		Random random = new Random(1);
+		int[] sizes = { 0, 1, 2, 127, 128, 129, 1000, 100000 };
+		for (int size : sizes) {
+			matchesIdSet(createIds(random, size, 4), createIds(random, size, 4));
+			matchesIdSet(createIds(random, size, 1L << 40), createIds(random, size / 2, 1L << 40));
+		}
+		matchesIdSet(IdSet.wrap(new long[] { Long.MIN_VALUE, -1, 0, Long.MAX_VALUE }),
+				IdSet.wrap(new long[] { Long.MIN_VALUE, 1, Long.MAX_VALUE }));
+
+		rejectsInvalidHeaders();
+		rejectsInvalidBlocks();
+		survivesCorruption(random);
+		System.out.println("CompressedIdSetCheck passed");
+	}
+
+
+	/**
+	 * Checks that CompressedIdSets of two sets of ids behave like IdSets, including after serialization.
+	 * @param a
+	 * @param b
+	 * @throws CoreException
+	 */
+	private static void matchesIdSet(IdSet a, IdSet b) throws CoreException {
+		String name = "sets of " + a.size() + " and " + b.size() + " ids";
+		CompressedIdSet ca = CompressedIdSet.fromIdSet(a);
+		CompressedIdSet cb = CompressedIdSet.fromIdSet(b);
+
+		checkSame(a, ca, name + ", first set");
+		checkSame(a, CompressedIdSet.fromByteArray(ca.toByteArray()), name + ", deserialized");
+		for (int i = 0; i < b.size(); i++) {
+			long id = b.get(i);
+			check(ca.contains(id) == a.contains(id), name + ", contains " + id);
+			check(ca.contains(id + 1) == a.contains(id + 1), name + ", contains " + (id + 1));
+		}
+
+		checkSame(IdSet.union(a, b), CompressedIdSet.union(ca, cb), name + ", union");
+		checkSame(IdSet.intersection(a, b), CompressedIdSet.intersection(ca, cb), name + ", intersection");
+		checkSame(IdSet.difference(a, b), CompressedIdSet.difference(ca, cb), name + ", difference");
+		checkSame(IdSet.difference(b, a), CompressedIdSet.difference(cb, ca), name + ", reverse difference");
+	}
+
+
+	/**
+	 * Checks that a CompressedIdSet holds the same ids as a sorted IdSet, in iteration and lookups.
+	 * @param expected
+	 * @param actual
+	 * @param name
+	 */
+	private static void checkSame(IdSet expected, CompressedIdSet actual, String name) {
+		int size = expected.size();
+		checkEquals(size, actual.size(), name + " size");
+		CompressedIdSet.IdIterator iterator = actual.iterator();
+		for (int i = 0; i < size; i++) {
+			check(iterator.hasNext(), name + " ends after " + i + " ids");
+			long id = iterator.next();
+			checkEquals(expected.get(i), id, name + " id " + i);
+			check(actual.contains(id), name + " does not contain " + id);
+		}
+		check(!iterator.hasNext(), name + " has more than " + size + " ids");
+		IdSet converted = actual.toIdSet();
+		checkEquals(size, converted.size(), name + " converted size");
+	}
+
+
+	/**
+	 * Checks that headers with a wrong magic number, negative sizes or a wrong length are rejected.
+	 */
+	private static void rejectsInvalidHeaders() {
+		byte[] valid = CompressedIdSet.fromIdSet(IdSet.wrap(new long[] { 1, 2, 3 })).toByteArray();
+
+		expectInvalid(null, "null");
+		expectInvalid(new byte[11], "short header");
+		byte[] bytes = valid.clone();
+		bytes[0] ^= 1;
+		expectInvalid(bytes, "wrong magic number");
+		expectInvalid(serialize(-1, 0, new long[0], new int[0], new byte[0]), "negative size");
+		expectInvalid(serialize(0, -1, new long[0], new int[0], new byte[0]), "negative data length");
+		expectInvalid(serialize(Integer.MAX_VALUE, 0, new long[0], new int[0], new byte[0]), "huge size");
+
+		bytes = new byte[valid.length - 1];
+		System.arraycopy(valid, 0, bytes, 0, bytes.length);
+		expectInvalid(bytes, "truncated");
+		bytes = new byte[valid.length + 1];
+		System.arraycopy(valid, 0, bytes, 0, valid.length);
+		expectInvalid(bytes, "trailing byte");
+	}
+
+
+	/**
+	 * Checks that inconsistent blocks are rejected.
+	 */
+	private static void rejectsInvalidBlocks() {
+		int n = CompressedIdSet.BLOCK_SIZE;
+		byte[] ones = new byte[n - 1];
+		for (int i = 0; i < ones.length; i++) {
+			ones[i] = 1;
+		}
+		// two blocks of consecutive ids starting at 0 and 1000, which are valid
+		byte[] data = concat(ones, ones);
+		long[] first = { 0, 1000 };
+		try {
+			CompressedIdSet.fromByteArray(serialize(2 * n, data.length, first, new int[] { 0, n - 1 }, data));
+		} catch (CoreException e) {
+			throw new AssertionError("valid blocks were rejected: " + e.getMessage());
+		}
+
+		expectInvalid(serialize(2 * n, data.length, first, new int[] { 1, n - 1 }, data), "first block offset");
+		expectInvalid(serialize(2 * n, data.length, first, new int[] { 0, n }, data), "second block offset");
+		expectInvalid(serialize(2 * n, data.length, first, new int[] { 0, -1 }, data), "negative block end");
+		expectInvalid(serialize(2 * n, data.length, first, new int[] { 0, data.length + 1 }, data),
+				"block end beyond data");
+		expectInvalid(serialize(2 * n, data.length, new long[] { 0, 100 }, new int[] { 0, n - 1 }, data),
+				"overlapping blocks");
+		expectInvalid(serialize(2 * n, data.length, new long[] { 0, n - 1 }, new int[] { 0, n - 1 }, data),
+				"blocks not ascending");
+		byte[] half = new byte[n / 2];
+		System.arraycopy(ones, 0, half, 0, half.length);
+		expectInvalid(serialize(n, half.length, new long[] { 0 }, new int[] { 0 }, half), "missing deltas");
+
+		byte[] zero = ones.clone();
+		zero[10] = 0;
+		expectInvalid(serialize(n, zero.length, new long[] { 0 }, new int[] { 0 }, zero), "zero delta");
+
+		byte[] extra = concat(ones, new byte[] { 1 });
+		expectInvalid(serialize(n, extra.length, new long[] { 0 }, new int[] { 0 }, extra), "extra delta");
+
+		byte[] overflow = new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 };
+		expectInvalid(serialize(2, overflow.length, new long[] { 5 }, new int[] { 0 }, overflow),
+				"delta wrapping around");
+		byte[] endless = new byte[12];
+		for (int i = 0; i < endless.length; i++) {
+			endless[i] = (byte) 0x80;
+		}
+		endless[endless.length - 1] = 1;
+		expectInvalid(serialize(2, endless.length, new long[] { 5 }, new int[] { 0 }, endless), "delta too long");
+		byte[] unterminated = new byte[] { (byte) 0x81 };
+		expectInvalid(serialize(2, unterminated.length, new long[] { 5 }, new int[] { 0 }, unterminated),
+				"unterminated delta");
+	}
+
+
+	/**
+	 * Checks that randomly corrupted serializations are either rejected or fully readable.
+	 * @param random
+	 */
+	private static void survivesCorruption(Random random) {
+		byte[] valid = CompressedIdSet.fromIdSet(createIds(random, 1000, 300)).toByteArray();
+		for (int i = 0; i < 20000; i++) {
+			byte[] bytes = valid.clone();
+			int flips = 1 + random.nextInt(4);
+			for (int j = 0; j < flips; j++) {
+				bytes[random.nextInt(bytes.length)] ^= 1 << random.nextInt(8);
+			}
+			CompressedIdSet set;
+			try {
+				set = CompressedIdSet.fromByteArray(bytes);
+			} catch (CoreException e) {
+				continue;
+			}
+			CompressedIdSet.IdIterator iterator = set.iterator();
+			int count = 0;
+			long previous = Long.MIN_VALUE;
+			while (iterator.hasNext()) {
+				long id = iterator.next();
+				check((count == 0) || (id > previous), "accepted corrupt set is not ascending");
+				check(set.contains(id), "accepted corrupt set does not contain " + id);
+				previous = id;
+				count++;
+			}
+			checkEquals(set.size(), count, "ids of accepted corrupt set");
+		}
+	}
+
+
+	/**
+	 * Checks that bytes are rejected with a CoreException.
+	 * @param bytes
+	 * @param name
+	 */
+	private static void expectInvalid(byte[] bytes, String name) {
+		try {
+			CompressedIdSet.fromByteArray(bytes);
+		} catch (CoreException e) {
+			return;
+		}
+		throw new AssertionError(name + " was accepted");
+	}
+
+
+	/**
+	 * Serializes the fields of a CompressedIdSet as {@link CompressedIdSet#toByteArray()} does,
+	 * without checking them.
+	 * @param size
+	 * @param dataLength
+	 * @param blockFirst
+	 * @param blockOffset
+	 * @param data
+	 * @return
+	 */
+	private static byte[] serialize(int size, int dataLength, long[] blockFirst, int[] blockOffset, byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocate(12 + blockFirst.length * 8 + blockOffset.length * 4 + data.length);
+		buffer.putInt(MAGIC);
+		buffer.putInt(size);
+		buffer.putInt(dataLength);
+		for (long first : blockFirst) {
+			buffer.putLong(first);
+		}
+		for (int offset : blockOffset) {
+			buffer.putInt(offset);
+		}
+		buffer.put(data);
+		return buffer.array();
+	}
+
+
+	/**
+	 * Concatenates two byte arrays.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] bytes = new byte[a.length + b.length];
+		System.arraycopy(a, 0, bytes, 0, a.length);
+		System.arraycopy(b, 0, bytes, a.length, b.length);
+		return bytes;
+	}
+
+
+	/**
+	 * Creates a sorted IdSet of distinct ids with random gaps.
+	 * @param random
+	 * @param size
+	 * @param maxGap maximum gap between consecutive ids.
+	 * @return
+	 */
+	static IdSet createIds(Random random, int size, long maxGap) {
+		IdSet ids = new IdSet(Math.max(size, 1));
+		long id = random.nextInt(1000);
+		for (int i = 0; i < size; i++) {
+			ids.add(id);
+			id += 1 + (long) (random.nextDouble() * maxGap);
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.List;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * A {@link RemoteProvider} of {@link BenchObject BenchObjects} backed by two {@link FakeStore FakeStores}.
+ */
+public class FakeRemoteProvider extends RemoteProvider<BenchObject> {
+
+	private final FakeStore local;
+	private final FakeStore remote;
+
+
+	/**
+	 * Creates a new FakeRemoteProvider.
+	 * @param cacheSize
+	 * @param local store used as local storage.
+	 * @param remote store used as remote storage, including its change log for sync.
+	 */
+	public FakeRemoteProvider(int cacheSize, FakeStore local, FakeStore remote) {
+		super(cacheSize);
+		this.local = local;
+		this.remote = remote;
+	}
+
+
+	/**
+	 * Gets the store used as local storage.
+	 * @return
+	 */
+	public FakeStore getLocalStore() {
+		return local;
+	}
+
+
+	/**
+	 * Gets the store used as remote storage.
+	 * @return
+	 */
+	public FakeStore getRemoteStore() {
+		return remote;
+	}
+
+
+	@Override
+	protected BenchObject getLocal(long id) throws CoreException {
+		return local.get(id);
+	}
+
+
+	@Override
+	protected List<BenchObject> getLocalBulk(IdSet ids) throws CoreException {
+		return local.getBulk(ids);
+	}
+
+
+	@Override
+	protected IdSet getLocalIds() throws CoreException {
+		return local.getIds();
+	}
+
+
+	@Override
+	protected void updateLocal(BenchObject o) throws CoreException {
+		local.put(o);
+	}
+
+
+	@Override
+	protected void markStaleLocal(long id) throws CoreException {
+		IdSet ids = new IdSet(1);
+		ids.add(id);
+		local.markStale(ids);
+	}
+
+
+	@Override
+	protected void markStaleLocalBulk(IdSet ids) throws CoreException {
+		local.markStale(ids);
+	}
+
+
+	@Override
+	protected void updateLocalBulk(List<BenchObject> set) throws CoreException {
+		local.putBulk(set);
+	}
+
+
+	@Override
+	protected void removeLocalBulk(IdSet ids) throws CoreException {
+		local.remove(ids);
+	}
+
+
+	@Override
+	protected Changes getRemoteChanges(long cursor) throws CoreException {
+		return remote.getChanges(cursor);
+	}
+
+
+	@Override
+	protected BenchObject getRemote(long id) throws CoreException {
+		return remote.get(id);
+	}
+
+
+	@Override
+	protected List<BenchObject> getRemoteBulk(IdSet ids) throws CoreException {
+		return remote.getBulk(ids);
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * An in-memory stand-in for local or remote storage of {@link BenchObject BenchObjects}.
+ * <p/>
+ * Every read waits for a fixed latency per call plus a latency per object, and fails with a
+ * configurable probability. Calls, transferred objects and failures are counted. Objects are copied
+ * on the way in and out, as real storage would decode them.
+ * <p/>
+ * Changes made with {@link #update(long)} and {@link #delete(long)} are recorded in a change log,
+ * so the store can also act as a remote that supports sync.
+ */
+public class FakeStore {
+
+	private final HashMap<Long, BenchObject> objects = new HashMap<Long, BenchObject>();
+	private final List<long[]> changeLog = new ArrayList<long[]>();
+	private final Random random = new Random(1);
+	private long version = 0;
+
+	private volatile long callLatency = 0;
+	private volatile long objectLatency = 0;
+	private volatile double failureRate = 0;
+	private final AtomicInteger bulkCallsUntilFailure = new AtomicInteger();
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong bulkCalls = new AtomicLong();
+	private final AtomicLong objectsRead = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong largestBulkCall = new AtomicLong();
+
+
+	/**
+	 * Sets the injected latency.
+	 * @param callLatency latency of each read in nanoseconds.
+	 * @param objectLatency additional latency per object read in nanoseconds.
+	 */
+	public void setLatency(long callLatency, long objectLatency) {
+		this.callLatency = callLatency;
+		this.objectLatency = objectLatency;
+	}
+
+
+	/**
+	 * Sets the probability that a read fails with a {@link CoreException}.
+	 * @param failureRate between 0 and 1.
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+
+	/**
+	 * Makes a following bulk read fail with a {@link CoreException}, regardless of the failure rate.
+	 * @param n 1 for the next bulk read, 2 for the one after it and so on, or 0 to cancel.
+	 */
+	public void failBulkCall(int n) {
+		bulkCallsUntilFailure.set(n);
+	}
+
+
+	/**
+	 * Fills the store with generated objects, without recording changes or counting writes.
+	 * @param first first id.
+	 * @param count number of objects.
+	 */
+	public synchronized void populate(long first, int count) {
+		for (long id = first; id < first + count; id++) {
+			objects.put(id, BenchObject.create(id, 0));
+		}
+	}
+
+
+	/**
+	 * Reads an object.
+	 * @param id
+	 * @return a copy of the object, or null if it is not stored.
+	 * @throws CoreException if a failure is injected.
+	 */
+	public BenchObject get(long id) throws CoreException {
+		calls.incrementAndGet();
+		delay(1);
+		BenchObject o;
+		synchronized (this) {
+			o = objects.get(id);
+		}
+		if (o == null) {
+			return null;
+		}
+		objectsRead.incrementAndGet();
+		return o.copy();
+	}
+
+
+	/**
+	 * Reads a set of objects.
+	 * @param ids
+	 * @return copies of the stored objects, in the requested order.
+	 * @throws CoreException if a failure is injected.
+	 */
+	public List<BenchObject> getBulk(IdSet ids) throws CoreException {
+		bulkCalls.incrementAndGet();
+		int size = ids.size();
+		long largest;
+		while (size > (largest = largestBulkCall.get())) {
+			largestBulkCall.compareAndSet(largest, size);
+		}
+		delay(size);
+		if ((bulkCallsUntilFailure.get() > 0) && (bulkCallsUntilFailure.decrementAndGet() == 0)) {
+			failures.incrementAndGet();
+			throw new CoreException("injected bulk failure");
+		}
+		List<BenchObject> result = new ArrayList<BenchObject>(size);
+		synchronized (this) {
+			for (int i = 0; i < size; i++) {
+				BenchObject o = objects.get(ids.get(i));
+				if (o != null) {
+					result.add(o.copy());
+				}
+			}
+		}
+		objectsRead.addAndGet(result.size());
+		return result;
+	}
+
+
+	/**
+	 * Writes an object.
+	 * @param o
+	 */
+	public synchronized void put(BenchObject o) {
+		writes.incrementAndGet();
+		objects.put(o.getId(), o.copy());
+	}
+
+
+	/**
+	 * Writes a set of objects.
+	 * @param set
+	 */
+	public synchronized void putBulk(List<BenchObject> set) {
+		writes.addAndGet(set.size());
+		for (BenchObject o : set) {
+			objects.put(o.getId(), o.copy());
+		}
+	}
+
+
+	/**
+	 * Marks stored objects as stale, ignoring ids that are not stored.
+	 * @param ids
+	 */
+	public synchronized void markStale(IdSet ids) {
+		int size = ids.size();
+		writes.addAndGet(size);
+		for (int i = 0; i < size; i++) {
+			BenchObject o = objects.get(ids.get(i));
+			if (o != null) {
+				o.setStale(true);
+			}
+		}
+	}
+
+
+	/**
+	 * Removes objects.
+	 * @param ids
+	 */
+	public synchronized void remove(IdSet ids) {
+		int size = ids.size();
+		writes.addAndGet(size);
+		for (int i = 0; i < size; i++) {
+			objects.remove(ids.get(i));
+		}
+	}
+
+
+	/**
+	 * Gets the ids of all stored objects.
+	 * @return a sorted IdSet.
+	 */
+	public synchronized IdSet getIds() {
+		IdSet ids = new IdSet(objects.size());
+		for (Long id : objects.keySet()) {
+			ids.add(id);
+		}
+		ids.sort();
+		return ids;
+	}
+
+
+	/**
+	 * Gets a stored object directly, without latency, failures or counting.
+	 * @param id
+	 * @return the object, or null if it is not stored.
+	 */
+	public synchronized BenchObject peek(long id) {
+		return objects.get(id);
+	}
+
+
+	/**
+	 * Creates or modifies an object and records the change.
+	 * @param id
+	 * @return the new version of the object.
+	 */
+	public synchronized BenchObject update(long id) {
+		version++;
+		BenchObject o = BenchObject.create(id, version);
+		objects.put(id, o);
+		changeLog.add(new long[] { version, id, 0 });
+		return o;
+	}
+
+
+	/**
+	 * Removes an object and records the change.
+	 * @param id
+	 */
+	public synchronized void delete(long id) {
+		version++;
+		objects.remove(id);
+		changeLog.add(new long[] { version, id, 1 });
+	}
+
+
+	/**
+	 * Gets the changes recorded after a cursor, in the form expected by {@link RemoteProvider#sync()}.
+	 * <p/>
+	 * An id that was changed and later removed is reported only as removed, and vice versa.
+	 * @param cursor
+	 * @return
+	 * @throws CoreException if a failure is injected.
+	 */
+	public RemoteProvider.Changes getChanges(long cursor) throws CoreException {
+		calls.incrementAndGet();
+		delay(1);
+		synchronized (this) {
+			HashMap<Long, Boolean> latest = new HashMap<Long, Boolean>();
+			for (long[] change : changeLog) {
+				if (change[0] > cursor) {
+					latest.put(change[1], change[2] != 0);
+				}
+			}
+			IdSet changedIds = new IdSet();
+			IdSet removedIds = new IdSet();
+			for (Map.Entry<Long, Boolean> entry : latest.entrySet()) {
+				if (entry.getValue()) {
+					removedIds.add(entry.getKey());
+				} else {
+					changedIds.add(entry.getKey());
+				}
+			}
+			changedIds.sort();
+			removedIds.sort();
+			return new RemoteProvider.Changes(changedIds, removedIds, version);
+		}
+	}
+
+
+	/**
+	 * Gets the number of single-object reads and change queries.
+	 * @return
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+
+	/**
+	 * Gets the number of bulk reads.
+	 * @return
+	 */
+	public long getBulkCalls() {
+		return bulkCalls.get();
+	}
+
+
+	/**
+	 * Gets the largest number of ids requested by a single bulk read.
+	 * @return
+	 */
+	public long getLargestBulkCall() {
+		return largestBulkCall.get();
+	}
+
+
+	/**
+	 * Gets the number of objects read.
+	 * @return
+	 */
+	public long getObjectsRead() {
+		return objectsRead.get();
+	}
+
+
+	/**
+	 * Gets the number of objects written, marked stale or removed.
+	 * @return
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+
+	/**
+	 * Gets the number of injected failures.
+	 * @return
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+
+	/**
+	 * Resets the counters.
+	 */
+	public void resetCounters() {
+		calls.set(0);
+		bulkCalls.set(0);
+		objectsRead.set(0);
+		writes.set(0);
+		failures.set(0);
+		largestBulkCall.set(0);
+	}
+
+
+	/**
+	 * Waits for the injected latency of a read and injects failures.
+	 * @param count number of objects read.
+	 * @throws CoreException if a failure is injected.
+	 */
+	private void delay(int count) throws CoreException {
+		long latency = callLatency + count * objectLatency;
+		if (latency > 0) {
+			long deadline = System.nanoTime() + latency;
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+		}
+
+		double rate = failureRate;
+		if (rate > 0) {
+			boolean fail;
+			synchronized (random) {
+				fail = random.nextDouble() < rate;
+			}
+			if (fail) {
+				failures.incrementAndGet();
+				throw new CoreException("injected failure");
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+
+/**
+ * Records the latency of operations, the elapsed time and the bytes allocated by the measuring threads.
+ * <p/>
+ * Each thread uses its own Measurement between {@link #start()} and {@link #stop()}; measurements of
+ * several threads are combined with {@link #merge(Measurement)}. Allocations on other threads, such as
+ * background executors, are not included.
+ */
+public class Measurement {
+
+	private long[] latencies = new long[1024];
+	private int count = 0;
+	private int errors = 0;
+	private long startTime;
+	private long elapsed = 0;
+	private long startAllocated;
+	private long allocated = 0;
+
+
+	/**
+	 * Starts measuring on the calling thread.
+	 */
+	public void start() {
+		startAllocated = getAllocatedBytes();
+		startTime = System.nanoTime();
+	}
+
+
+	/**
+	 * Stops measuring on the calling thread.
+	 */
+	public void stop() {
+		elapsed += System.nanoTime() - startTime;
+		long end = getAllocatedBytes();
+		allocated = ((end < 0) || (startAllocated < 0)) ? -1 : allocated + (end - startAllocated);
+	}
+
+
+	/**
+	 * Records the latency of an operation.
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (count == latencies.length) {
+			latencies = Arrays.copyOf(latencies, count * 2);
+		}
+		latencies[count++] = nanos;
+	}
+
+
+	/**
+	 * Records an operation that failed.
+	 * @param nanos
+	 */
+	public void recordError(long nanos) {
+		record(nanos);
+		errors++;
+	}
+
+
+	/**
+	 * Adds the operations and allocations of another measurement. The elapsed time is the longer of both,
+	 * as measurements of concurrent threads overlap.
+	 * @param other
+	 */
+	public void merge(Measurement other) {
+		for (int i = 0; i < other.count; i++) {
+			record(other.latencies[i]);
+		}
+		errors += other.errors;
+		elapsed = Math.max(elapsed, other.elapsed);
+		allocated = ((allocated < 0) || (other.allocated < 0)) ? -1 : allocated + other.allocated;
+	}
+
+
+	/**
+	 * Gets the number of operations.
+	 * @return
+	 */
+	public int getCount() {
+		return count;
+	}
+
+
+	/**
+	 * Gets the number of failed operations.
+	 * @return
+	 */
+	public int getErrors() {
+		return errors;
+	}
+
+
+	/**
+	 * Gets the operations per second.
+	 * @return
+	 */
+	public double getThroughput() {
+		return (elapsed == 0) ? 0 : count * 1e9 / elapsed;
+	}
+
+
+	/**
+	 * Gets a latency percentile.
+	 * @param percentile between 0 and 100.
+	 * @return latency in nanoseconds.
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return sorted[Math.min(Math.max(index, 0), count - 1)];
+	}
+
+
+	/**
+	 * Gets the allocation rate.
+	 * @return megabytes per second, or -1 if the JVM does not report allocations.
+	 */
+	public double getAllocationRate() {
+		return ((allocated < 0) || (elapsed == 0)) ? -1 : allocated * 1e9 / elapsed / (1 << 20);
+	}
+
+
+	/**
+	 * Gets the bytes allocated per operation.
+	 * @return bytes, or -1 if the JVM does not report allocations.
+	 */
+	public long getAllocatedPerOperation() {
+		return ((allocated < 0) || (count == 0)) ? -1 : allocated / count;
+	}
+
+
+	/**
+	 * Gets the bytes allocated by the calling thread so far.
+	 * @return bytes, or -1 if the JVM does not report allocations.
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
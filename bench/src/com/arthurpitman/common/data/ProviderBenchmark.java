@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Measures {@link RemoteProvider} against fake local and remote storage.
+ * <p/>
+ * Scenarios: cold cache, hot cache, a stale storm, a sequential scan through a hot working set, and
+ * zipfian access, some with variants such as an admission policy or a flaky remote. For each scenario
+ * the throughput, latency percentiles, allocation rate, hit ratios and backend call counts are printed.
+ * <p/>
+ * Latencies and the amount of work can be adjusted with system properties:
+ * {@code bench.localLatencyUs} (default 10), {@code bench.remoteLatencyUs} (default 100) and
+ * {@code bench.scale} (default 1).
+ */
+public class ProviderBenchmark {
+
+	/**
+	 * A single measured operation.
+	 */
+	private interface Operation {
+		void run(int index) throws CoreException;
+	}
+
+
+	private static final long LOCAL_LATENCY = Long.getLong("bench.localLatencyUs", 10) * 1000;
+	private static final long REMOTE_LATENCY = Long.getLong("bench.remoteLatencyUs", 100) * 1000;
+	private static final double SCALE = Double.parseDouble(System.getProperty("bench.scale", "1"));
+
+	/** Latency per object of bulk reads, relative to the latency per call. */
+	private static final int OBJECT_LATENCY_DIVISOR = 50;
+
+
+	public static void main(String[] args) throws Exception {
+		System.out.println(String.format(Locale.US, "local latency %d us, remote latency %d us, scale %.2f",
+				LOCAL_LATENCY / 1000, REMOTE_LATENCY / 1000, SCALE));
+		System.out.println(String.format(Locale.US,
+				"%-28s %7s %9s %8s %8s %8s %6s %6s %8s %7s %13s %13s %8s %6s",
+				"scenario", "ops", "ops/s", "p50 us", "p99 us", "max us", "mem%", "local%", "alloc MB/s",
+				"B/op", "local s/bulk", "remote s/bulk", "remote n", "errors"));
+
+		coldCache(false);
+		coldCache(true);
+		hotCache();
+		staleStorm(false);
+		staleStorm(true);
+		sequentialScan(false);
+		sequentialScan(true);
+		zipfian(false, 0);
+		zipfian(true, 0);
+		zipfian(false, 0.01);
+	}
+
+
+	/**
+	 * Requests every object once, with nothing cached locally.
+	 * @param bulk true to request windows of 100 ids, false to request single ids.
+	 * @throws CoreException
+	 */
+	private static void coldCache(boolean bulk) throws CoreException {
+		int n = scaled(5000);
+		final FakeRemoteProvider provider = createProvider(1000);
+		provider.getRemoteStore().populate(0, n);
+		final long[] ids = shuffledIds(0, n, 1);
+		Measurement m;
+		if (bulk) {
+			final int window = 100;
+			m = measure((n + window - 1) / window, new Operation() {
+				@Override
+				public void run(int index) throws CoreException {
+					int start = index * window;
+					IdSet windowIds = new IdSet(window);
+					for (int i = start; i < Math.min(start + window, ids.length); i++) {
+						windowIds.add(ids[i]);
+					}
+					provider.get(windowIds, RemoteProvider.SCOPE_ALL);
+				}
+			});
+		} else {
+			m = measure(n, new Operation() {
+				@Override
+				public void run(int index) throws CoreException {
+					provider.get(ids[index], RemoteProvider.SCOPE_ALL);
+				}
+			});
+		}
+		report(bulk ? "cold cache, bulk 100" : "cold cache", provider, m);
+	}
+
+
+	/**
+	 * Repeatedly requests a working set that fits in the cache.
+	 * @throws CoreException
+	 */
+	private static void hotCache() throws CoreException {
+		final int workingSet = 500;
+		final FakeRemoteProvider provider = createProvider(1000);
+		provider.getRemoteStore().populate(0, workingSet);
+		warm(provider, 0, workingSet);
+		final Random random = new Random(2);
+		Measurement m = measure(scaled(200000), new Operation() {
+			@Override
+			public void run(int index) throws CoreException {
+				provider.get(random.nextInt(workingSet), RemoteProvider.SCOPE_ALL);
+			}
+		});
+		report("hot cache", provider, m);
+	}
+
+
+	/**
+	 * Marks every cached object stale, then requests them from 8 threads at once.
+	 * @param revalidate true to enable stale-while-revalidate.
+	 * @throws Exception
+	 */
+	private static void staleStorm(boolean revalidate) throws Exception {
+		final int n = 2000;
+		final FakeRemoteProvider provider = createProvider(n);
+		provider.getRemoteStore().populate(0, n);
+		warm(provider, 0, n);
+		ExecutorService executor = null;
+		if (revalidate) {
+			executor = Executors.newFixedThreadPool(2);
+			provider.setStaleWhileRevalidate(executor, null);
+		}
+		IdSet ids = new IdSet(n);
+		for (long id = 0; id < n; id++) {
+			ids.add(id);
+		}
+		provider.refresh(ids, true);
+		reset(provider);
+
+		Measurement m = measureConcurrently(8, scaled(500), new Operation() {
+			private final Random random = new Random(3);
+
+			@Override
+			public void run(int index) throws CoreException {
+				int id;
+				synchronized (random) {
+					id = random.nextInt(n);
+				}
+				provider.get(id, RemoteProvider.SCOPE_ALL);
+			}
+		});
+		if (executor != null) {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		report(revalidate ? "stale storm, revalidate" : "stale storm", provider, m);
+	}
+
+
+	/**
+	 * Pages through a long list once while repeatedly requesting a small hot working set.
+	 * @param policy true to use a {@link FrequencyCachePolicy}, false for plain LRU.
+	 * @throws CoreException
+	 */
+	private static void sequentialScan(boolean policy) throws CoreException {
+		final int n = scaled(20000);
+		final int page = 100;
+		final int hotSet = 100;
+		final int hotPerPage = 20;
+		final FakeRemoteProvider provider = createProvider(1000);
+		if (policy) {
+			provider.setCachePolicy(new FrequencyCachePolicy(1000));
+		}
+		provider.getRemoteStore().populate(0, n + hotSet);
+		provider.getLocalStore().populate(0, n + hotSet);
+		for (int i = 0; i < 3; i++) {
+			warm(provider, n, hotSet);
+		}
+		reset(provider);
+
+		final Random random = new Random(4);
+		Measurement m = measure((n / page) * (1 + hotPerPage), new Operation() {
+			@Override
+			public void run(int index) throws CoreException {
+				int step = index % (1 + hotPerPage);
+				if (step == 0) {
+					int start = (index / (1 + hotPerPage)) * page;
+					IdSet ids = new IdSet(page);
+					for (int i = start; i < start + page; i++) {
+						ids.add(i);
+					}
+					provider.get(ids, RemoteProvider.SCOPE_ALL);
+				} else {
+					provider.get(n + random.nextInt(hotSet), RemoteProvider.SCOPE_ALL);
+				}
+			}
+		});
+		report(policy ? "sequential scan, frequency" : "sequential scan", provider, m);
+	}
+
+
+	/**
+	 * Requests ids with a zipfian distribution from a range much larger than the cache.
+	 * @param policy true to use a {@link FrequencyCachePolicy}, false for plain LRU.
+	 * @param failureRate probability of remote failures.
+	 * @throws CoreException
+	 */
+	private static void zipfian(boolean policy, double failureRate) throws CoreException {
+		int n = 100000;
+		final FakeRemoteProvider provider = createProvider(1000);
+		if (policy) {
+			provider.setCachePolicy(new FrequencyCachePolicy(1000));
+		}
+		provider.getRemoteStore().populate(0, n);
+		provider.getRemoteStore().setFailureRate(failureRate);
+		final ZipfGenerator generator = new ZipfGenerator(0, n, 0.99, 5);
+		Measurement m = measure(scaled(50000), new Operation() {
+			@Override
+			public void run(int index) throws CoreException {
+				provider.get(generator.next(), RemoteProvider.SCOPE_ALL);
+			}
+		});
+		String name = policy ? "zipfian, frequency" : "zipfian";
+		if (failureRate > 0) {
+			name += String.format(Locale.US, ", %.0f%% failures", failureRate * 100);
+		}
+		report(name, provider, m);
+	}
+
+
+	/**
+	 * Creates a provider with empty stores and the configured latencies.
+	 * @param cacheSize
+	 * @return
+	 */
+	private static FakeRemoteProvider createProvider(int cacheSize) {
+		FakeStore local = new FakeStore();
+		local.setLatency(LOCAL_LATENCY, LOCAL_LATENCY / OBJECT_LATENCY_DIVISOR);
+		FakeStore remote = new FakeStore();
+		remote.setLatency(REMOTE_LATENCY, REMOTE_LATENCY / OBJECT_LATENCY_DIVISOR);
+		return new FakeRemoteProvider(cacheSize, local, remote);
+	}
+
+
+	/**
+	 * Requests a range of ids in bulk, so that they are cached and stored locally, then resets the counters.
+	 * @param provider
+	 * @param first
+	 * @param count
+	 * @throws CoreException
+	 */
+	private static void warm(FakeRemoteProvider provider, long first, int count) throws CoreException {
+		IdSet ids = new IdSet(count);
+		for (long id = first; id < first + count; id++) {
+			ids.add(id);
+		}
+		provider.get(ids, RemoteProvider.SCOPE_ALL);
+		reset(provider);
+	}
+
+
+	/**
+	 * Resets the statistics of a provider and the counters of its stores.
+	 * @param provider
+	 */
+	private static void reset(FakeRemoteProvider provider) {
+		provider.resetStats();
+		provider.getLocalStore().resetCounters();
+		provider.getRemoteStore().resetCounters();
+	}
+
+
+	/**
+	 * Runs operations on the calling thread.
+	 * @param count
+	 * @param operation
+	 * @return
+	 */
+	private static Measurement measure(int count, Operation operation) {
+		Measurement m = new Measurement();
+		m.start();
+		for (int i = 0; i < count; i++) {
+			long start = System.nanoTime();
+			try {
+				operation.run(i);
+				m.record(System.nanoTime() - start);
+			} catch (CoreException e) {
+				m.recordError(System.nanoTime() - start);
+			}
+		}
+		m.stop();
+		return m;
+	}
+
+
+	/**
+	 * Runs operations on several threads at once.
+	 * @param threads
+	 * @param countPerThread
+	 * @param operation
+	 * @return the combined measurement.
+	 * @throws InterruptedException
+	 */
+	private static Measurement measureConcurrently(int threads, final int countPerThread, final Operation operation)
+			throws InterruptedException {
+		final Measurement[] measurements = new Measurement[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					measurements[index] = measure(countPerThread, operation);
+				}
+			};
+		}
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		Measurement combined = new Measurement();
+		for (int t = 0; t < threads; t++) {
+			workers[t].join();
+			combined.merge(measurements[t]);
+		}
+		return combined;
+	}
+
+
+	/**
+	 * Prints the results of a scenario.
+	 * @param name
+	 * @param provider
+	 * @param m
+	 */
+	private static void report(String name, FakeRemoteProvider provider, Measurement m) {
+		ProviderStats.Snapshot stats = provider.getStats();
+		FakeStore local = provider.getLocalStore();
+		FakeStore remote = provider.getRemoteStore();
+		System.out.println(String.format(Locale.US,
+				"%-28s %7d %9.0f %8.1f %8.1f %8.1f %6.1f %6.1f %8.1f %7d %13s %13s %8d %6d",
+				name, m.getCount(), m.getThroughput(),
+				m.getPercentile(50) / 1e3, m.getPercentile(99) / 1e3, m.getPercentile(100) / 1e3,
+				stats.getMemoryHitRatio() * 100, stats.getLocalHitRatio() * 100,
+				m.getAllocationRate(), m.getAllocatedPerOperation(),
+				local.getCalls() + "/" + local.getBulkCalls(), remote.getCalls() + "/" + remote.getBulkCalls(),
+				remote.getObjectsRead(), m.getErrors()));
+	}
+
+
+	/**
+	 * Creates a range of ids in random order.
+	 * @param first
+	 * @param count
+	 * @param seed
+	 * @return
+	 */
+	private static long[] shuffledIds(long first, int count, long seed) {
+		long[] ids = new long[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = first + i;
+		}
+		Random random = new Random(seed);
+		for (int i = count - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			long t = ids[i];
+			ids[i] = ids[j];
+			ids[j] = t;
+		}
+		return ids;
+	}
+
+
+	/**
+	 * Scales an amount of work by {@code bench.scale}.
+	 * @param count
+	 * @return
+	 */
+	private static int scaled(int count) {
+		return Math.max((int) (count * SCALE), 1);
+	}
+}
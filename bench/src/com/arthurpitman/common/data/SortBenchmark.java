@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * Measures sorting and growing {@link IdSet IdSets} of 10 to 1M ids.
+ * <p/>
+ * For each size and distribution of ids, the time per id is printed for {@code Arrays.sort}, for
+ * {@link IdSet#sortArray(long[], int)}, which switches to a radix sort at
+ * {@link IdSet#RADIX_SORT_THRESHOLD}, for {@link IdSet#toSorted()} of an IdSet that is already sorted,
+ * and for appending the ids one by one to an empty IdSet, together with the number of reallocations.
+ * Every sort is checked against {@code Arrays.sort}.
+ */
+public class SortBenchmark {
+
+	/**
+	 * A timed task.
+	 */
+	private interface Task {
+		void run();
+	}
+
+
+	private static final int[] SIZES = { 10, 100, 1000, 10000, 100000, 1000000 };
+	private static final String[] DISTRIBUTIONS = { "random", "dense", "nearly sorted" };
+
+	/** Minimum time in nanoseconds each measurement is repeated for. */
+	private static final long MIN_TIME = 100000000L;
+
+	private static long sink;
+
+
+	public static void main(String[] args) {
+		System.out.println(String.format(Locale.US, "%-14s %8s %14s %16s %15s %13s %6s",
+				"distribution", "ids", "Arrays ns/id", "sortArray ns/id", "toSorted ns/id", "append ns/id", "grows"));
+		for (String distribution : DISTRIBUTIONS) {
+			for (int size : SIZES) {
+				run(distribution, size);
+			}
+		}
+	}
+
+
+	/**
+	 * Measures one size and distribution of ids.
+	 * @param distribution
+	 * @param size
+	 */
+	private static void run(String distribution, final int size) {
+		final long[] input = createIds(distribution, size, 1);
+		final long[] work = new long[size];
+
+		long[] expected = input.clone();
+		Arrays.sort(expected);
+		long[] actual = input.clone();
+		IdSet.sortArray(actual, size);
+		Checks.check(Arrays.equals(expected, actual), "sortArray differs from Arrays.sort for " + distribution
+				+ " ids, size " + size);
+
+		double arraysSort = time(size, new Task() {
+			@Override
+			public void run() {
+				System.arraycopy(input, 0, work, 0, size);
+				Arrays.sort(work, 0, size);
+				sink += work[0];
+			}
+		});
+		double sortArray = time(size, new Task() {
+			@Override
+			public void run() {
+				System.arraycopy(input, 0, work, 0, size);
+				IdSet.sortArray(work, size);
+				sink += work[0];
+			}
+		});
+
+		final IdSet sorted = new IdSet(input);
+		sorted.sort();
+		double toSorted = time(size, new Task() {
+			@Override
+			public void run() {
+				sink += sorted.toSorted().size();
+			}
+		});
+
+		double append = time(size, new Task() {
+			@Override
+			public void run() {
+				IdSet ids = new IdSet();
+				for (int i = 0; i < size; i++) {
+					ids.add(input[i]);
+				}
+				sink += ids.size();
+			}
+		});
+
+		System.out.println(String.format(Locale.US, "%-14s %8d %14.2f %16.2f %15.3f %13.2f %6d",
+				distribution, size, arraysSort, sortArray, toSorted, append, countGrowths(size)));
+	}
+
+
+	/**
+	 * Repeats a task until the minimum time has passed, after a warm-up.
+	 * @param size number of ids processed by each run.
+	 * @param task
+	 * @return nanoseconds per id.
+	 */
+	private static double time(int size, Task task) {
+		for (int i = 0; i < 3; i++) {
+			task.run();
+		}
+		long runs = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			task.run();
+			runs++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < MIN_TIME);
+		return (double) elapsed / runs / size;
+	}
+
+
+	/**
+	 * Counts how often an empty IdSet reallocates while growing to a size.
+	 * @param size
+	 * @return
+	 */
+	private static int countGrowths(int size) {
+		int capacity = new IdSet().getBackingArray().length;
+		int growths = 0;
+		while (capacity < size) {
+			capacity = IdSet.getGrowthSize(capacity);
+			growths++;
+		}
+		return growths;
+	}
+
+
+	/**
+	 * Creates ids.
+	 * @param distribution "random" for ids spread over all longs, "dense" for ids from a range of
+	 * four times the size, "nearly sorted" for ascending ids with 1% swapped.
+	 * @param size
+	 * @param seed
+	 * @return
+	 */
+	private static long[] createIds(String distribution, int size, long seed) {
+		Random random = new Random(seed);
+		long[] ids = new long[size];
+		if (distribution.equals("random")) {
+			for (int i = 0; i < size; i++) {
+				ids[i] = random.nextLong();
+			}
+		} else if (distribution.equals("dense")) {
+			for (int i = 0; i < size; i++) {
+				ids[i] = random.nextInt(4 * size);
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				ids[i] = i * 3;
+			}
+			for (int i = 0; i < size / 100; i++) {
+				int a = random.nextInt(size);
+				int b = random.nextInt(size);
+				long t = ids[a];
+				ids[a] = ids[b];
+				ids[b] = t;
+			}
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import static com.arthurpitman.common.data.Checks.check;
+import static com.arthurpitman.common.data.Checks.checkEquals;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Checks {@link RemoteProvider#sync()} against a fake remote with a change log.
+ */
+public class SyncCheck {
+
+	public static void main(String[] args) throws CoreException {
+		appliesChanges();
+		scalesWithChurn();
+		keepsCursorOnFailure();
+		System.out.println("SyncCheck passed");
+	}
+
+
+	/**
+	 * Changed cached objects are retrieved in bulk, changed uncached objects are marked stale
+	 * and removed objects are dropped everywhere.
+	 * @throws CoreException
+	 */
+	private static void appliesChanges() throws CoreException {
+		FakeRemoteProvider provider = createProvider(1000);
+		FakeStore local = provider.getLocalStore();
+		FakeStore remote = provider.getRemoteStore();
+		remote.populate(0, 1000);
+		provider.get(range(0, 100), RemoteProvider.SCOPE_ALL);
+		local.populate(100, 100);
+
+		remote.update(5);
+		remote.update(50);
+		remote.update(150);
+		remote.update(500);
+		remote.delete(7);
+		remote.delete(160);
+		remote.resetCounters();
+
+		checkEquals(6, provider.sync(), "changes applied");
+		checkEquals(1, remote.getCalls(), "change queries");
+		checkEquals(1, remote.getBulkCalls(), "bulk retrievals");
+		checkEquals(2, remote.getObjectsRead(), "objects retrieved");
+
+		checkEquals(1, provider.get(5, RemoteProvider.SCOPE_LOCAL).version, "cached object 5 version");
+		checkEquals(2, provider.get(50, RemoteProvider.SCOPE_LOCAL).version, "cached object 50 version");
+		checkEquals(1, local.peek(5).version, "stored object 5 version");
+		check(provider.get(7, RemoteProvider.SCOPE_LOCAL) == null, "removed object 7 is still cached");
+		check(local.peek(7) == null, "removed object 7 is still stored");
+		check(local.peek(160) == null, "removed object 160 is still stored");
+
+		check(local.peek(150).isStale(), "changed object 150 is not marked stale");
+		checkEquals(3, provider.get(150, RemoteProvider.SCOPE_ALL).version, "object 150 version");
+		checkEquals(4, provider.get(500, RemoteProvider.SCOPE_ALL).version, "object 500 version");
+
+		remote.resetCounters();
+		checkEquals(0, provider.sync(), "changes after a second sync");
+		checkEquals(0, remote.getBulkCalls(), "bulk retrievals after a second sync");
+		checkEquals(remote.getChanges(0).cursor, provider.getSyncCursor(), "cursor");
+	}
+
+
+	/**
+	 * The objects retrieved by a sync depend on the number of changes, not on the number of objects.
+	 * @throws CoreException
+	 */
+	private static void scalesWithChurn() throws CoreException {
+		for (int n = 1000; n <= 100000; n *= 10) {
+			FakeRemoteProvider provider = createProvider(n);
+			FakeStore remote = provider.getRemoteStore();
+			remote.populate(0, n);
+			provider.get(range(0, n), RemoteProvider.SCOPE_ALL);
+			provider.sync();
+
+			for (int i = 0; i < 10; i++) {
+				remote.update(i * (n / 10));
+			}
+			remote.resetCounters();
+			checkEquals(10, provider.sync(), "changes applied with " + n + " objects");
+			checkEquals(10, remote.getObjectsRead(), "objects retrieved with " + n + " objects");
+		}
+	}
+
+
+	/**
+	 * A failed sync leaves the cursor unchanged, so the next sync applies the same changes.
+	 * @throws CoreException
+	 */
+	private static void keepsCursorOnFailure() throws CoreException {
+		FakeRemoteProvider provider = createProvider(100);
+		FakeStore remote = provider.getRemoteStore();
+		remote.populate(0, 100);
+		provider.get(range(0, 100), RemoteProvider.SCOPE_ALL);
+		remote.update(10);
+
+		remote.setFailureRate(1);
+		try {
+			provider.sync();
+			throw new AssertionError("sync did not fail");
+		} catch (CoreException e) {
+			// expected
+		}
+		checkEquals(0, provider.getSyncCursor(), "cursor after a failed sync");
+
+		remote.setFailureRate(0);
+		checkEquals(1, provider.sync(), "changes applied after a failed sync");
+		checkEquals(1, provider.get(10, RemoteProvider.SCOPE_LOCAL).version, "object 10 version");
+	}
+
+
+	/**
+	 * Creates a provider with empty stores and no latency.
+	 * @param cacheSize
+	 * @return
+	 */
+	private static FakeRemoteProvider createProvider(int cacheSize) {
+		return new FakeRemoteProvider(cacheSize, new FakeStore(), new FakeStore());
+	}
+
+
+	/**
+	 * Creates a sorted range of ids.
+	 * @param first
+	 * @param count
+	 * @return
+	 */
+	private static IdSet range(long first, int count) {
+		IdSet ids = new IdSet(count);
+		for (long id = first; id < first + count; id++) {
+			ids.add(id);
+		}
+		return ids;
+	}
+}
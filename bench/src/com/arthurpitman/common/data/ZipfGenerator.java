@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.Random;
+
+
+/**
+ * Generates ids with a zipfian popularity distribution, where the k-th most popular of n ids is
+ * requested with a probability proportional to 1 / k^exponent.
+ * <p/>
+ * Popularity ranks are scattered over the id range, so that popular ids are not adjacent.
+ */
+public class ZipfGenerator {
+
+	private final double[] cumulative;
+	private final long first;
+	private final Random random;
+
+
+	/**
+	 * Creates a new ZipfGenerator.
+	 * @param first first id.
+	 * @param n number of ids.
+	 * @param exponent skew, typically close to 1.
+	 * @param seed
+	 */
+	public ZipfGenerator(long first, int n, double exponent, long seed) {
+		this.first = first;
+		cumulative = new double[n];
+		double sum = 0;
+		for (int k = 0; k < n; k++) {
+			sum += 1 / Math.pow(k + 1, exponent);
+			cumulative[k] = sum;
+		}
+		for (int k = 0; k < n; k++) {
+			cumulative[k] /= sum;
+		}
+		random = new Random(seed);
+	}
+
+
+	/**
+	 * Gets the next id.
+	 * @return
+	 */
+	public long next() {
+		double u = random.nextDouble();
+		int low = 0;
+		int high = cumulative.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulative[middle] < u) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return first + scatter(low);
+	}
+
+
+	/**
+	 * Maps a popularity rank to an offset in the id range.
+	 * @param rank
+	 * @return
+	 */
+	private long scatter(int rank) {
+		// 7919 is prime, so this is a permutation unless n is a multiple of it
+		int n = cumulative.length;
+		return (n % 7919 == 0) ? rank : (rank * 7919L) % n;
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common;
+
+import java.io.UnsupportedEncodingException;
+
+
+/**
+ * Reads values written by {@link ByteArrayWriter} from a byte array in a single pass.
+ */
+public class ByteArrayReader {
+
+	private final byte[] bytes;
+	private final int end;
+	private int position;
+
+
+	/**
+	 * Creates a new ByteArrayReader for a whole byte array.
+	 * @param bytes
+	 */
+	public ByteArrayReader(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+
+	/**
+	 * Creates a new ByteArrayReader for part of a byte array.
+	 * @param bytes
+	 * @param offset index of the first byte.
+	 * @param length number of bytes.
+	 */
+	public ByteArrayReader(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+
+	/**
+	 * Reads a byte.
+	 * @return
+	 * @throws CoreException if the data is truncated.
+	 */
+	public byte readByte() throws CoreException {
+		require(1);
+		return bytes[position++];
+	}
+
+
+	/**
+	 * Reads a boolean.
+	 * @return
+	 * @throws CoreException if the data is truncated.
+	 */
+	public boolean readBoolean() throws CoreException {
+		return readByte() != 0;
+	}
+
+
+	/**
+	 * Reads an int.
+	 * @return
+	 * @throws CoreException if the data is truncated.
+	 */
+	public int readInt() throws CoreException {
+		require(4);
+		int value = ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16)
+				| ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+		position += 4;
+		return value;
+	}
+
+
+	/**
+	 * Reads a long.
+	 * @return
+	 * @throws CoreException if the data is truncated.
+	 */
+	public long readLong() throws CoreException {
+		require(8);
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[position++] & 0xFF);
+		}
+		return value;
+	}
+
+
+	/**
+	 * Reads a double.
+	 * @return
+	 * @throws CoreException if the data is truncated.
+	 */
+	public double readDouble() throws CoreException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+
+	/**
+	 * Reads a float.
+	 * @return
+	 * @throws CoreException if the data is truncated.
+	 */
+	public float readFloat() throws CoreException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+
+	/**
+	 * Reads a long written by {@link ByteArrayWriter#writeVarLong(long)}.
+	 * @return
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	public long readVarLong() throws CoreException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new CoreException("invalid var-int");
+	}
+
+
+	/**
+	 * Reads a long written by {@link ByteArrayWriter#writeSignedVarLong(long)}.
+	 * @return
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	public long readSignedVarLong() throws CoreException {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+
+	/**
+	 * Reads a String.
+	 * @return the String, or null if null was written.
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	public String readString() throws CoreException {
+		int length = readLength();
+		if (length < 0) {
+			return null;
+		}
+		require(length);
+		String value;
+		try {
+			value = new String(bytes, position, length, ByteArrayWriter.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new CoreException(e);
+		}
+		position += length;
+		return value;
+	}
+
+
+	/**
+	 * Reads a byte array.
+	 * @return the byte array, or null if null was written.
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	public byte[] readBytes() throws CoreException {
+		int length = readLength();
+		if (length < 0) {
+			return null;
+		}
+		require(length);
+		byte[] value = new byte[length];
+		System.arraycopy(bytes, position, value, 0, length);
+		position += length;
+		return value;
+	}
+
+
+	/**
+	 * Reads a long array.
+	 * @return the array, or null if null was written.
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	public long[] readLongArray() throws CoreException {
+		return ByteArrayUtils.convertByteArrayToLongArray(readBytes());
+	}
+
+
+	/**
+	 * Reads an int array.
+	 * @return the array, or null if null was written.
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	public int[] readIntArray() throws CoreException {
+		return ByteArrayUtils.convertByteArrayToIntArray(readBytes());
+	}
+
+
+	/**
+	 * Reads a double array.
+	 * @return the array, or null if null was written.
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	public double[] readDoubleArray() throws CoreException {
+		return ByteArrayUtils.convertByteArrayToDoubleArray(readBytes());
+	}
+
+
+	/**
+	 * Gets the number of bytes left to read.
+	 * @return
+	 */
+	public int remaining() {
+		return end - position;
+	}
+
+
+	/**
+	 * Reads the length preceding a String or array.
+	 * @return the length, or -1 for null.
+	 * @throws CoreException if the data is truncated or invalid.
+	 */
+	private int readLength() throws CoreException {
+		long length = readVarLong() - 1;
+		if ((length < -1) || (length > remaining())) {
+			throw new CoreException("invalid length " + length);
+		}
+		return (int) length;
+	}
+
+
+	/**
+	 * Ensures that enough bytes are left to read.
+	 * @param count
+	 * @throws CoreException if the data is truncated.
+	 */
+	private void require(int count) throws CoreException {
+		if (count > end - position) {
+			throw new CoreException("unexpected end of data");
+		}
+	}
+}
@@ -49,12 +49,8 @@ public class ByteArrayUtils {
 		if (bytes == null)
 			return null;
 
-		int count = bytes.length / 8;
-		long[] longArray = new long[count];
-		ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-		for (int i = 0; i < count; i++) {
-			longArray[i] = byteBuffer.getLong();
-		}
+		long[] longArray = new long[bytes.length / 8];
+		ByteBuffer.wrap(bytes).asLongBuffer().get(longArray);
 		return longArray;
 	}
 
@@ -68,10 +64,7 @@ public class ByteArrayUtils {
 		if (longArray == null)
 			return null;
 		byte[] bytes = new byte[longArray.length * 8];
-		ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-		for (long v : longArray) {
-			byteBuffer.putLong(v);
-		}
+		ByteBuffer.wrap(bytes).asLongBuffer().put(longArray);
 		return bytes;
 	}
 
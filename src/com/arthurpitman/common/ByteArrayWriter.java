@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common;
+
+import java.io.UnsupportedEncodingException;
+
+
+/**
+ * Writes primitive values, strings and arrays into a growing byte array.
+ * <p/>
+ * Fixed-size values are big-endian, in the format used by {@link ByteArrayUtils}. Lengths and
+ * var-ints use 7 bits per byte. The written data can be read with {@link ByteArrayReader}.
+ */
+public class ByteArrayWriter {
+
+	/** Name of the character set of Strings; the Charset overloads of String require API level 9. */
+	static final String UTF_8 = "UTF-8";
+
+	private byte[] bytes;
+	private int size = 0;
+
+
+	/**
+	 * Creates a new ByteArrayWriter.
+	 */
+	public ByteArrayWriter() {
+		this(64);
+	}
+
+
+	/**
+	 * Creates a new ByteArrayWriter.
+	 * @param capacity initial capacity in bytes.
+	 */
+	public ByteArrayWriter(int capacity) {
+		bytes = new byte[Math.max(capacity, 16)];
+	}
+
+
+	/**
+	 * Writes a byte.
+	 * @param value
+	 */
+	public void writeByte(int value) {
+		ensureCapacity(1);
+		bytes[size++] = (byte) value;
+	}
+
+
+	/**
+	 * Writes a boolean as a single byte.
+	 * @param value
+	 */
+	public void writeBoolean(boolean value) {
+		writeByte(value ? 1 : 0);
+	}
+
+
+	/**
+	 * Writes an int as 4 bytes.
+	 * @param value
+	 */
+	public void writeInt(int value) {
+		ensureCapacity(4);
+		bytes[size++] = (byte) (value >>> 24);
+		bytes[size++] = (byte) (value >>> 16);
+		bytes[size++] = (byte) (value >>> 8);
+		bytes[size++] = (byte) value;
+	}
+
+
+	/**
+	 * Writes a long as 8 bytes.
+	 * @param value
+	 */
+	public void writeLong(long value) {
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			bytes[size++] = (byte) (value >>> shift);
+		}
+	}
+
+
+	/**
+	 * Writes a double as 8 bytes.
+	 * @param value
+	 */
+	public void writeDouble(double value) {
+		writeLong(Double.doubleToLongBits(value));
+	}
+
+
+	/**
+	 * Writes a float as 4 bytes.
+	 * @param value
+	 */
+	public void writeFloat(float value) {
+		writeInt(Float.floatToIntBits(value));
+	}
+
+
+	/**
+	 * Writes a non-negative long in 1 to 10 bytes, using fewer bytes for smaller values.
+	 * @param value
+	 */
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[size++] = (byte) value;
+	}
+
+
+	/**
+	 * Writes a long in 1 to 10 bytes, using fewer bytes for values close to zero.
+	 * @param value
+	 */
+	public void writeSignedVarLong(long value) {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+
+	/**
+	 * Writes a String as UTF-8, preceded by its length.
+	 * @param value the String, may be null.
+	 */
+	public void writeString(String value) {
+		if (value == null) {
+			writeBytes(null);
+			return;
+		}
+		try {
+			writeBytes(value.getBytes(UTF_8));
+		} catch (UnsupportedEncodingException e) {
+			// every platform supports UTF-8
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/**
+	 * Writes a byte array, preceded by its length.
+	 * @param value the byte array, may be null.
+	 */
+	public void writeBytes(byte[] value) {
+		if (value == null) {
+			writeVarLong(0);
+			return;
+		}
+		writeVarLong(value.length + 1L);
+		ensureCapacity(value.length);
+		System.arraycopy(value, 0, bytes, size, value.length);
+		size += value.length;
+	}
+
+
+	/**
+	 * Writes a long array, preceded by its length.
+	 * @param value the array, may be null.
+	 */
+	public void writeLongArray(long[] value) {
+		writeBytes(ByteArrayUtils.convertLongArrayToByteArray(value));
+	}
+
+
+	/**
+	 * Writes an int array, preceded by its length.
+	 * @param value the array, may be null.
+	 */
+	public void writeIntArray(int[] value) {
+		writeBytes(ByteArrayUtils.convertIntArrayToByteArray(value));
+	}
+
+
+	/**
+	 * Writes a double array, preceded by its length.
+	 * @param value the array, may be null.
+	 */
+	public void writeDoubleArray(double[] value) {
+		writeBytes(ByteArrayUtils.convertDoubleArrayToByteArray(value));
+	}
+
+
+	/**
+	 * Gets the number of bytes written.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Discards all written bytes, keeping the allocated storage for reuse.
+	 */
+	public void reset() {
+		size = 0;
+	}
+
+
+	/**
+	 * Copies the written bytes to a new array.
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		byte[] array = new byte[size];
+		System.arraycopy(bytes, 0, array, 0, size);
+		return array;
+	}
+
+
+	/**
+	 * Gets the internal array without copying it. Only the first {@link #size()} bytes are valid.
+	 * @return
+	 */
+	public byte[] getBackingArray() {
+		return bytes;
+	}
+
+
+	/**
+	 * Grows the internal array if necessary.
+	 * @param additional number of bytes about to be written.
+	 */
+	private void ensureCapacity(int additional) {
+		int required = size + additional;
+		if (required > bytes.length) {
+			byte[] newBytes = new byte[Math.max(required, bytes.length * 2)];
+			System.arraycopy(bytes, 0, newBytes, 0, size);
+			bytes = newBytes;
+		}
+	}
+}
@@ -16,9 +16,12 @@
 
 package com.arthurpitman.common;
 
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 
+import com.arthurpitman.common.data.IdSet;
+
 
 /**
  * Utility class for SQLite databases.
@@ -118,4 +121,25 @@ public class SQLiteUtils {
 			statement.bindString(index, value);
 		}
 	}
+
+
+	/**
+	 * Reads a column of ids from all rows of a cursor.
+	 * <p/>
+	 * The ids are read into an array sized by the row count, which is wrapped without copying.
+	 * The cursor position is changed.
+	 * @param cursor
+	 * @param columnIndex
+	 * @return
+	 */
+	public static IdSet readIdSet(Cursor cursor, int columnIndex) {
+		long[] ids = new long[cursor.getCount()];
+		int size = 0;
+		if (cursor.moveToFirst()) {
+			do {
+				ids[size++] = cursor.getLong(columnIndex);
+			} while ((size < ids.length) && cursor.moveToNext());
+		}
+		return IdSet.wrap(ids, size);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * Tunes the batch size of bulk remote requests from their observed latency and throughput.
+ * <p/>
+ * The batch size grows gradually while full batches complete within the target latency without
+ * losing throughput, and is halved when a batch is too slow, throughput drops or a request fails.
+ * Timings are passed in explicitly, so the controller can be driven by simulated latencies.
+ */
+public class BatchSizeController {
+
+	/** Fraction by which throughput may drop before the batch size is reduced. */
+	private static final double THROUGHPUT_TOLERANCE = 0.2;
+
+	/** Weight of the latest observation in the smoothed throughput. */
+	private static final double SMOOTHING = 0.25;
+
+	private final int minBatchSize;
+	private final int maxBatchSize;
+	private final int initialBatchSize;
+	private final long targetLatency;
+	private int batchSize;
+	private double throughput = 0;
+
+
+	/**
+	 * Creates a new BatchSizeController.
+	 * @param initialBatchSize
+	 * @param minBatchSize
+	 * @param maxBatchSize
+	 * @param targetLatency maximum desired duration of a batch in milliseconds, or 0 for no limit.
+	 */
+	public BatchSizeController(int initialBatchSize, int minBatchSize, int maxBatchSize, long targetLatency) {
+		if ((minBatchSize < 1) || (maxBatchSize < minBatchSize)) {
+			throw new IllegalArgumentException("invalid batch size bounds " + minBatchSize + " to " + maxBatchSize);
+		}
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.initialBatchSize = clamp(initialBatchSize);
+		this.targetLatency = (targetLatency > 0) ? targetLatency * 1000000 : Long.MAX_VALUE;
+		batchSize = this.initialBatchSize;
+	}
+
+
+	/**
+	 * Gets the current batch size.
+	 * @return
+	 */
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+
+	/**
+	 * Gets the smoothed throughput of previous batches.
+	 * @return objects per second, or 0 if no full batch has been recorded yet.
+	 */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+
+	/**
+	 * Records a completed batch and adjusts the batch size.
+	 * @param count number of ids requested.
+	 * @param elapsed duration of the request in nanoseconds.
+	 */
+	public synchronized void record(int count, long elapsed) {
+		if (count <= 0) {
+			return;
+		}
+		if (elapsed > targetLatency) {
+			batchSize = clamp(batchSize / 2);
+			return;
+		}
+
+		// partial batches carry proportionally more overhead, so only full batches are compared
+		if (count < batchSize) {
+			return;
+		}
+		double current = count * 1e9 / Math.max(elapsed, 1);
+		if ((throughput > 0) && (current < throughput * (1 - THROUGHPUT_TOLERANCE))) {
+			batchSize = clamp(batchSize / 2);
+		} else {
+			batchSize = clamp(batchSize + Math.max(batchSize >> 3, 1));
+		}
+		throughput = (throughput == 0) ? current : (SMOOTHING * current + (1 - SMOOTHING) * throughput);
+	}
+
+
+	/**
+	 * Records a failed batch and halves the batch size.
+	 */
+	public synchronized void recordFailure() {
+		batchSize = clamp(batchSize / 2);
+	}
+
+
+	/**
+	 * Forgets all observations and restores the initial batch size.
+	 */
+	public synchronized void reset() {
+		batchSize = initialBatchSize;
+		throughput = 0;
+	}
+
+
+	/**
+	 * Limits a batch size to the bounds.
+	 * @param size
+	 * @return
+	 */
+	private int clamp(int size) {
+		return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * Admission policy for a {@link ProviderCache}.
+ * <p/>
+ * The cache itself evicts least-recently-used objects; the policy decides whether a new object
+ * is worth evicting another one for.
+ */
+public interface CachePolicy {
+
+	/**
+	 * Records a request for an object.
+	 * @param id
+	 */
+	void recordAccess(long id);
+
+
+	/**
+	 * Determines if a new object should be added to a full cache.
+	 * @param id
+	 * @return
+	 */
+	boolean admit(long id);
+}
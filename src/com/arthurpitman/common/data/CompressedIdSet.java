@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * An immutable, compressed set of long IDs, optimized for very large collections.
+ * <p/>
+ * IDs are kept in ascending order without duplicates, split into blocks of {@code BLOCK_SIZE}.
+ * The first ID of each block is stored in an index, the others as variable-length deltas,
+ * so dense or clustered IDs take one or two bytes each. Lookups, iteration and set operations
+ * work on the encoded form without expanding it into a full {@code long[]}.
+ */
+public class CompressedIdSet {
+
+	/** Number of IDs per block. */
+	public static final int BLOCK_SIZE = 128;
+
+	private static final int MAGIC = 0x43494453;
+
+	private final int size;
+	private final byte[] data;
+	private final int dataLength;
+	private final long[] blockFirst;
+	private final int[] blockOffset;
+
+
+	/**
+	 * Iterates over the IDs of a {@link CompressedIdSet} in ascending order.
+	 */
+	public static class IdIterator {
+
+		private final CompressedIdSet set;
+		private int index = 0;
+		private int offset = 0;
+		private long previous;
+
+
+		private IdIterator(CompressedIdSet set) {
+			this.set = set;
+		}
+
+
+		/**
+		 * Determines if there are more IDs.
+		 * @return
+		 */
+		public boolean hasNext() {
+			return index < set.size;
+		}
+
+
+		/**
+		 * Gets the next ID.
+		 * @return
+		 */
+		public long next() {
+			if (index >= set.size) {
+				throw new NoSuchElementException();
+			}
+
+			if ((index % BLOCK_SIZE) == 0) {
+				int block = index / BLOCK_SIZE;
+				previous = set.blockFirst[block];
+				offset = set.blockOffset[block];
+			} else {
+				byte[] data = set.data;
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[offset++];
+					delta |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				previous += delta;
+			}
+			index++;
+			return previous;
+		}
+	}
+
+
+	/**
+	 * Builds a {@link CompressedIdSet} from IDs added in ascending order.
+	 */
+	public static class Builder {
+
+		private int size = 0;
+		private byte[] data;
+		private int dataLength = 0;
+		private long[] blockFirst;
+		private int[] blockOffset;
+		private long previous;
+
+
+		/**
+		 * Creates a new Builder.
+		 */
+		public Builder() {
+			this(BLOCK_SIZE);
+		}
+
+
+		/**
+		 * Creates a new Builder.
+		 * @param expectedSize expected number of IDs.
+		 */
+		public Builder(int expectedSize) {
+			data = new byte[Math.max(expectedSize, 16)];
+			int blocks = Math.max((expectedSize + BLOCK_SIZE - 1) / BLOCK_SIZE, 1);
+			blockFirst = new long[blocks];
+			blockOffset = new int[blocks];
+		}
+
+
+		/**
+		 * Adds an ID, which must be greater than the previously added ID.
+		 * @param id
+		 */
+		public void add(long id) {
+			if ((size > 0) && (id <= previous)) {
+				throw new IllegalArgumentException("ids must be added in ascending order");
+			}
+
+			if ((size % BLOCK_SIZE) == 0) {
+				int block = size / BLOCK_SIZE;
+				if (block == blockFirst.length) {
+					int n = block + (block >> 1) + 1;
+					long[] newBlockFirst = new long[n];
+					int[] newBlockOffset = new int[n];
+					System.arraycopy(blockFirst, 0, newBlockFirst, 0, block);
+					System.arraycopy(blockOffset, 0, newBlockOffset, 0, block);
+					blockFirst = newBlockFirst;
+					blockOffset = newBlockOffset;
+				}
+				blockFirst[block] = id;
+				blockOffset[block] = dataLength;
+			} else {
+				if (dataLength + 10 > data.length) {
+					byte[] newData = new byte[data.length + (data.length >> 1) + 10];
+					System.arraycopy(data, 0, newData, 0, dataLength);
+					data = newData;
+				}
+				long delta = id - previous;
+				while ((delta & ~0x7FL) != 0) {
+					data[dataLength++] = (byte) ((delta & 0x7F) | 0x80);
+					delta >>>= 7;
+				}
+				data[dataLength++] = (byte) delta;
+			}
+			previous = id;
+			size++;
+		}
+
+
+		/**
+		 * Creates the {@link CompressedIdSet}.
+		 * @return
+		 */
+		public CompressedIdSet build() {
+			int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			long[] first = new long[blocks];
+			int[] offset = new int[blocks];
+			System.arraycopy(blockFirst, 0, first, 0, blocks);
+			System.arraycopy(blockOffset, 0, offset, 0, blocks);
+			byte[] bytes = new byte[dataLength];
+			System.arraycopy(data, 0, bytes, 0, dataLength);
+			return new CompressedIdSet(size, bytes, dataLength, first, offset);
+		}
+	}
+
+
+	private CompressedIdSet(int size, byte[] data, int dataLength, long[] blockFirst, int[] blockOffset) {
+		this.size = size;
+		this.data = data;
+		this.dataLength = dataLength;
+		this.blockFirst = blockFirst;
+		this.blockOffset = blockOffset;
+	}
+
+
+	/**
+	 * Creates a CompressedIdSet from an {@link IdSet}.
+	 * @param ids
+	 * @return
+	 */
+	public static CompressedIdSet fromIdSet(IdSet ids) {
+		ids = ids.toSorted();
+		int size = ids.size();
+		Builder builder = new Builder(size);
+		for (int i = 0; i < size; i++) {
+			builder.add(ids.get(i));
+		}
+		return builder.build();
+	}
+
+
+	/**
+	 * Creates a CompressedIdSet from its serialized form.
+	 * @param bytes
+	 * @return
+	 * @throws CoreException if the bytes are not a valid serialized CompressedIdSet.
+	 */
+	public static CompressedIdSet fromByteArray(byte[] bytes) throws CoreException {
+		if ((bytes == null) || (bytes.length < 12)) {
+			throw new CoreException("invalid compressed id set");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		if (buffer.getInt() != MAGIC) {
+			throw new CoreException("invalid compressed id set");
+		}
+		int size = buffer.getInt();
+		int dataLength = buffer.getInt();
+		if ((size < 0) || (dataLength < 0)) {
+			throw new CoreException("invalid compressed id set size " + size + ", data length " + dataLength);
+		}
+		int blocks = (int) ((size + (long) BLOCK_SIZE - 1) / BLOCK_SIZE);
+		if (buffer.remaining() != blocks * 12L + dataLength) {
+			throw new CoreException("invalid compressed id set length " + bytes.length + " for size " + size
+					+ ", data length " + dataLength);
+		}
+
+		long[] blockFirst = new long[blocks];
+		int[] blockOffset = new int[blocks];
+		buffer.asLongBuffer().get(blockFirst);
+		buffer.position(buffer.position() + blocks * 8);
+		buffer.asIntBuffer().get(blockOffset);
+		buffer.position(buffer.position() + blocks * 4);
+		byte[] data = new byte[dataLength];
+		buffer.get(data);
+		validate(size, data, dataLength, blockFirst, blockOffset);
+		return new CompressedIdSet(size, data, dataLength, blockFirst, blockOffset);
+	}
+
+
+	/**
+	 * Checks that deserialized blocks are consistent, so that iterating cannot fail later.
+	 * <p/>
+	 * Each block must start where the previous one ended, decode to exactly its number of ascending
+	 * IDs, and end below the first ID of the next block.
+	 * @param size
+	 * @param data
+	 * @param dataLength
+	 * @param blockFirst
+	 * @param blockOffset
+	 * @throws CoreException if the blocks are inconsistent.
+	 */
+	private static void validate(int size, byte[] data, int dataLength, long[] blockFirst, int[] blockOffset)
+			throws CoreException {
+		int blocks = blockFirst.length;
+		int offset = 0;
+		for (int block = 0; block < blocks; block++) {
+			if (blockOffset[block] != offset) {
+				throw new CoreException("invalid offset " + blockOffset[block] + " of block " + block);
+			}
+			int end = (block + 1 < blocks) ? blockOffset[block + 1] : dataLength;
+			if ((end < offset) || (end > dataLength)) {
+				throw new CoreException("invalid end " + end + " of block " + block);
+			}
+			int count = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+			long previous = blockFirst[block];
+			for (int i = 1; i < count; i++) {
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					if ((offset >= end) || (shift >= 64)) {
+						throw new CoreException("invalid delta in block " + block);
+					}
+					b = data[offset++];
+					delta |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				long id = previous + delta;
+				if (id <= previous) {
+					throw new CoreException("ids not ascending in block " + block);
+				}
+				previous = id;
+			}
+			if (offset != end) {
+				throw new CoreException("invalid length of block " + block);
+			}
+			if ((block + 1 < blocks) && (blockFirst[block + 1] <= previous)) {
+				throw new CoreException("blocks not ascending at block " + (block + 1));
+			}
+		}
+	}
+
+
+	/**
+	 * Serializes the CompressedIdSet.
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		int blocks = blockFirst.length;
+		ByteBuffer buffer = ByteBuffer.allocate(12 + blocks * 12 + dataLength);
+		buffer.putInt(MAGIC);
+		buffer.putInt(size);
+		buffer.putInt(dataLength);
+		buffer.asLongBuffer().put(blockFirst);
+		buffer.position(buffer.position() + blocks * 8);
+		buffer.asIntBuffer().put(blockOffset);
+		buffer.position(buffer.position() + blocks * 4);
+		buffer.put(data, 0, dataLength);
+		return buffer.array();
+	}
+
+
+	/**
+	 * Converts the CompressedIdSet to a sorted {@link IdSet}.
+	 * @return
+	 */
+	public IdSet toIdSet() {
+		IdSet ids = new IdSet(size);
+		IdIterator iterator = iterator();
+		while (iterator.hasNext()) {
+			ids.add(iterator.next());
+		}
+		return ids;
+	}
+
+
+	/**
+	 * Gets an iterator over the IDs in ascending order.
+	 * @return
+	 */
+	public IdIterator iterator() {
+		return new IdIterator(this);
+	}
+
+
+	/**
+	 * Gets the number of IDs.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Determines if the CompressedIdSet is empty.
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+
+	/**
+	 * Gets the approximate memory used by the encoded IDs and the block index, in bytes.
+	 * @return
+	 */
+	public int getEncodedSize() {
+		return dataLength + blockFirst.length * 12;
+	}
+
+
+	/**
+	 * Determines if the CompressedIdSet contains an ID.
+	 * <p/>
+	 * Finds the block with a binary search on the index, then decodes at most one block.
+	 * @param id
+	 * @return
+	 */
+	public boolean contains(long id) {
+		int low = 0;
+		int high = blockFirst.length - 1;
+		int block = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long first = blockFirst[mid];
+			if (first == id) {
+				return true;
+			} else if (first < id) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (block < 0) {
+			return false;
+		}
+
+		int count = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+		int offset = blockOffset[block];
+		long current = blockFirst[block];
+		for (int i = 1; i < count; i++) {
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[offset++];
+				delta |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			current += delta;
+			if (current >= id) {
+				return current == id;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Creates the union of two CompressedIdSets.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static CompressedIdSet union(CompressedIdSet a, CompressedIdSet b) {
+		Builder builder = new Builder(a.size + b.size);
+		IdIterator x = a.iterator();
+		IdIterator y = b.iterator();
+		boolean hasU = x.hasNext();
+		boolean hasV = y.hasNext();
+		long u = hasU ? x.next() : 0;
+		long v = hasV ? y.next() : 0;
+		while (hasU && hasV) {
+			if (u < v) {
+				builder.add(u);
+				hasU = x.hasNext();
+				u = hasU ? x.next() : 0;
+			} else if (u > v) {
+				builder.add(v);
+				hasV = y.hasNext();
+				v = hasV ? y.next() : 0;
+			} else {
+				builder.add(u);
+				hasU = x.hasNext();
+				u = hasU ? x.next() : 0;
+				hasV = y.hasNext();
+				v = hasV ? y.next() : 0;
+			}
+		}
+		while (hasU) {
+			builder.add(u);
+			hasU = x.hasNext();
+			u = hasU ? x.next() : 0;
+		}
+		while (hasV) {
+			builder.add(v);
+			hasV = y.hasNext();
+			v = hasV ? y.next() : 0;
+		}
+		return builder.build();
+	}
+
+
+	/**
+	 * Creates the intersection of two CompressedIdSets.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static CompressedIdSet intersection(CompressedIdSet a, CompressedIdSet b) {
+		Builder builder = new Builder(Math.min(a.size, b.size));
+		IdIterator x = a.iterator();
+		IdIterator y = b.iterator();
+		if (!x.hasNext() || !y.hasNext()) {
+			return builder.build();
+		}
+		long u = x.next();
+		long v = y.next();
+		while (true) {
+			if (u < v) {
+				if (!x.hasNext()) {
+					break;
+				}
+				u = x.next();
+			} else if (u > v) {
+				if (!y.hasNext()) {
+					break;
+				}
+				v = y.next();
+			} else {
+				builder.add(u);
+				if (!x.hasNext() || !y.hasNext()) {
+					break;
+				}
+				u = x.next();
+				v = y.next();
+			}
+		}
+		return builder.build();
+	}
+
+
+	/**
+	 * Creates the difference of two CompressedIdSets, the IDs in {@code a} that are not in {@code b}.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static CompressedIdSet difference(CompressedIdSet a, CompressedIdSet b) {
+		Builder builder = new Builder(a.size);
+		IdIterator x = a.iterator();
+		IdIterator y = b.iterator();
+		boolean hasV = y.hasNext();
+		long v = hasV ? y.next() : 0;
+		while (x.hasNext()) {
+			long u = x.next();
+			while (hasV && (v < u)) {
+				hasV = y.hasNext();
+				v = hasV ? y.next() : 0;
+			}
+			if (!hasV || (v != u)) {
+				builder.add(u);
+			}
+		}
+		return builder.build();
+	}
+}
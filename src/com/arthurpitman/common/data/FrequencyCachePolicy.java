@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * A scan-resistant {@link CachePolicy} in the style of TinyLFU.
+ * <p/>
+ * Access frequencies are estimated with a count-min sketch of 4-bit counters that are halved
+ * once per sample of ten times the cache size accesses, so the estimate follows recent popularity.
+ * The first access of an id within a sample only sets bits in a Bloom filter, the doorkeeper, so
+ * ids requested once never reach the sketch and cannot saturate it. The sketch is at least as wide
+ * as the sample, which keeps collisions with popular ids rare. Once the cache is full, only objects
+ * that have been requested at least {@code threshold} times recently are admitted, which keeps
+ * one-off sequential scans from flushing the working set.
+ * <p/>
+ * The sketch and the doorkeeper use roughly 40 to 80 bytes per expected cached object.
+ */
+public class FrequencyCachePolicy implements CachePolicy {
+
+	/** Default number of recent accesses required for admission. */
+	public static final int DEFAULT_THRESHOLD = 2;
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int MAX_CACHE_SIZE = 1 << 16;
+	private static final int SAMPLE_FACTOR = 10;
+	private static final int DOORKEEPER_BITS_PER_SAMPLE = 16;
+	private static final long[] SEEDS = {
+		0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+	};
+
+	/** Counters of all rows, 16 per long. */
+	private final long[] counters;
+	private final int counterMask;
+	private final long[] doorkeeper;
+	private final int doorkeeperMask;
+	private final int threshold;
+	private final int sampleSize;
+	private int additions = 0;
+
+
+	/**
+	 * Creates a new FrequencyCachePolicy with {@code DEFAULT_THRESHOLD}.
+	 * @param cacheSize expected number of objects in the cache.
+	 */
+	public FrequencyCachePolicy(int cacheSize) {
+		this(cacheSize, DEFAULT_THRESHOLD);
+	}
+
+
+	/**
+	 * Creates a new FrequencyCachePolicy.
+	 * @param cacheSize expected number of objects in the cache.
+	 * @param threshold number of recent accesses required for admission.
+	 */
+	public FrequencyCachePolicy(int cacheSize, int threshold) {
+		sampleSize = SAMPLE_FACTOR * Math.min(Math.max(cacheSize, 16), MAX_CACHE_SIZE);
+		int width = Integer.highestOneBit(sampleSize - 1) << 1;
+		counters = new long[DEPTH * width / 16];
+		counterMask = width - 1;
+		int doorkeeperBits = width * DOORKEEPER_BITS_PER_SAMPLE;
+		doorkeeper = new long[doorkeeperBits / 64];
+		doorkeeperMask = doorkeeperBits - 1;
+		this.threshold = threshold;
+	}
+
+
+	@Override
+	public synchronized void recordAccess(long id) {
+		if (!addToDoorkeeper(id)) {
+			for (int row = 0; row < DEPTH; row++) {
+				int i = counterIndex(id, row);
+				int shift = (i & 15) << 2;
+				if (((counters[i >>> 4] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+					counters[i >>> 4] += 1L << shift;
+				}
+			}
+		}
+
+		if (++additions == sampleSize) {
+			age();
+		}
+	}
+
+
+	@Override
+	public boolean admit(long id) {
+		return frequency(id) >= threshold;
+	}
+
+
+	/**
+	 * Estimates the recent access frequency of an object.
+	 * @param id
+	 * @return
+	 */
+	public synchronized int frequency(long id) {
+		if (!inDoorkeeper(id)) {
+			return 0;
+		}
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < DEPTH; row++) {
+			int i = counterIndex(id, row);
+			frequency = Math.min(frequency, (int) ((counters[i >>> 4] >>> ((i & 15) << 2)) & MAX_COUNT));
+		}
+		return frequency + 1;
+	}
+
+
+	/**
+	 * Halves all counters so that old accesses lose their weight, and clears the doorkeeper.
+	 */
+	private void age() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = (counters[i] >>> 1) & 0x7777777777777777L;
+		}
+		for (int i = 0; i < doorkeeper.length; i++) {
+			doorkeeper[i] = 0;
+		}
+		additions /= 2;
+	}
+
+
+	/**
+	 * Adds an id to the doorkeeper.
+	 * @param id
+	 * @return true if the id was not in the doorkeeper before.
+	 */
+	private boolean addToDoorkeeper(long id) {
+		boolean added = false;
+		for (int row = 0; row < DEPTH; row++) {
+			int bit = (int) hash(id, row) & doorkeeperMask;
+			long mask = 1L << bit;
+			if ((doorkeeper[bit >>> 6] & mask) == 0) {
+				doorkeeper[bit >>> 6] |= mask;
+				added = true;
+			}
+		}
+		return added;
+	}
+
+
+	/**
+	 * Determines if an id is in the doorkeeper.
+	 * @param id
+	 * @return
+	 */
+	private boolean inDoorkeeper(long id) {
+		for (int row = 0; row < DEPTH; row++) {
+			int bit = (int) hash(id, row) & doorkeeperMask;
+			if ((doorkeeper[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Determines the counter index of an id in a row of the sketch.
+	 * @param id
+	 * @param row
+	 * @return
+	 */
+	private int counterIndex(long id, int row) {
+		return (row * (counterMask + 1)) + ((int) (hash(id, row) >>> 32) & counterMask);
+	}
+
+
+	/**
+	 * Hashes an id for a row of the sketch and the doorkeeper.
+	 * @param id
+	 * @param row
+	 * @return
+	 */
+	private static long hash(long id, int row) {
+		long h = (id + SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+		return h ^ (h >>> 29);
+	}
+}
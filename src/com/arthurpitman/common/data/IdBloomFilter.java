@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * A Bloom filter of long ids.
+ * <p/>
+ * {@link #mightContain(long)} never returns false for an id that was added, and returns true for
+ * an id that was not added with roughly the false positive rate the filter was sized for.
+ */
+public class IdBloomFilter {
+
+	private final long[] bits;
+	private final int bitCount;
+	private final int hashCount;
+
+
+	/**
+	 * Creates a new IdBloomFilter.
+	 * @param expectedCount expected number of ids.
+	 * @param falsePositiveRate acceptable false positive rate, such as 0.01.
+	 */
+	public IdBloomFilter(int expectedCount, double falsePositiveRate) {
+		expectedCount = Math.max(expectedCount, 1);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-expectedCount * Math.log(falsePositiveRate) / (ln2 * ln2));
+		m = Math.max(64, Math.min(m, (long) Integer.MAX_VALUE - 63));
+		bits = new long[(int) ((m + 63) / 64)];
+		bitCount = bits.length * 64;
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedCount * ln2));
+	}
+
+
+	/**
+	 * Adds an id.
+	 * @param id
+	 */
+	public synchronized void add(long id) {
+		long h = mix(id);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+
+	/**
+	 * Adds a set of ids.
+	 * @param ids
+	 */
+	public synchronized void add(IdSet ids) {
+		int size = ids.size();
+		for (int i = 0; i < size; i++) {
+			add(ids.get(i));
+		}
+	}
+
+
+	/**
+	 * Determines if an id might have been added.
+	 * @param id
+	 * @return false if the id has definitely not been added.
+	 */
+	public synchronized boolean mightContain(long id) {
+		long h = mix(id);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Removes all ids.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 0;
+		}
+	}
+
+
+	/**
+	 * Mixes the bits of an id so that sequential ids are spread evenly.
+	 * @param id
+	 * @return
+	 */
+	private static long mix(long id) {
+		id = (id ^ (id >>> 33)) * 0xFF51AFD7ED558CCDL;
+		id = (id ^ (id >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return id ^ (id >>> 33);
+	}
+}
@@ -28,6 +28,9 @@ public class IdObject {
 	/** Stale flag. Do not manipulate this directly, it will be managed by the provider. */
 	protected boolean stale;
 
+	/** Time the object was fetched, in milliseconds since the epoch, or 0 if unknown. Managed by the provider. */
+	protected long fetchTime;
+
 
 	/**
 	 * Creates a new IdObject.
@@ -65,4 +68,25 @@ public class IdObject {
 	public boolean isStale() {
 		return stale;
 	}
+
+
+	/**
+	 * Sets the fetch time.
+	 * <p/>
+	 * Providers set this when objects are retrieved. Implementations of local storage should persist it
+	 * and restore it when objects are loaded, so that time-to-live policies survive restarts.
+	 * @param fetchTime time in milliseconds since the epoch, or 0 if unknown.
+	 */
+	public void setFetchTime(long fetchTime) {
+		this.fetchTime = fetchTime;
+	}
+
+
+	/**
+	 * Gets the fetch time.
+	 * @return time in milliseconds since the epoch, or 0 if unknown.
+	 */
+	public long getFetchTime() {
+		return fetchTime;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import com.arthurpitman.common.ByteArrayReader;
+import com.arthurpitman.common.ByteArrayWriter;
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Converts IdObjects to and from a compact binary form, so that an object can be stored as a single blob.
+ * <p/>
+ * Subclasses write the fields of an object in {@link #write(IdObject, ByteArrayWriter)} and read them back
+ * in the same order in {@link #read(long, ByteArrayReader)}. The id is not part of the encoded form,
+ * nor are the stale flag and fetch time, which are managed by the provider.
+ * @param <T>
+ */
+public abstract class IdObjectCodec<T extends IdObject> {
+
+	/**
+	 * Writes the fields of an object.
+	 * @param o
+	 * @param writer
+	 */
+	protected abstract void write(T o, ByteArrayWriter writer);
+
+
+	/**
+	 * Reads an object.
+	 * @param id id of the object.
+	 * @param reader
+	 * @return
+	 * @throws CoreException if the data is invalid.
+	 */
+	protected abstract T read(long id, ByteArrayReader reader) throws CoreException;
+
+
+	/**
+	 * Encodes an object.
+	 * @param o
+	 * @return
+	 */
+	public byte[] encode(T o) {
+		ByteArrayWriter writer = new ByteArrayWriter();
+		write(o, writer);
+		return writer.toByteArray();
+	}
+
+
+	/**
+	 * Encodes an object into a writer, which can be reused to encode many objects without allocating.
+	 * @param o
+	 * @param writer
+	 */
+	public void encode(T o, ByteArrayWriter writer) {
+		write(o, writer);
+	}
+
+
+	/**
+	 * Decodes an object.
+	 * @param id id of the object.
+	 * @param bytes
+	 * @return
+	 * @throws CoreException if the data is invalid.
+	 */
+	public T decode(long id, byte[] bytes) throws CoreException {
+		return decode(id, bytes, 0, bytes.length);
+	}
+
+
+	/**
+	 * Decodes an object from part of a byte array.
+	 * @param id id of the object.
+	 * @param bytes
+	 * @param offset index of the first byte.
+	 * @param length number of bytes.
+	 * @return
+	 * @throws CoreException if the data is invalid.
+	 */
+	public T decode(long id, byte[] bytes, int offset, int length) throws CoreException {
+		return read(id, new ByteArrayReader(bytes, offset, length));
+	}
+}
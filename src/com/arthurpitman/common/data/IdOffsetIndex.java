@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * A hash map from ids to positive int offsets, using open addressing with linear probing
+ * over primitive arrays. Not thread-safe.
+ */
+class IdOffsetIndex {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] offsets;
+	private int mask;
+	private int shift;
+	private int size = 0;
+
+
+	/**
+	 * Creates a new IdOffsetIndex.
+	 * @param expectedSize
+	 */
+	public IdOffsetIndex(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+
+	/**
+	 * Gets the offset of an id.
+	 * @param id
+	 * @return the offset, or -1 if the id is not present.
+	 */
+	public int get(long id) {
+		for (int i = slot(id); ; i = (i + 1) & mask) {
+			int offset = offsets[i];
+			if (offset == 0) {
+				return -1;
+			}
+			if (keys[i] == id) {
+				return offset;
+			}
+		}
+	}
+
+
+	/**
+	 * Puts the offset of an id.
+	 * @param id
+	 * @param offset must be positive.
+	 * @return the previous offset, or -1 if the id was not present.
+	 */
+	public int put(long id, int offset) {
+		if ((size + 1) * 2 > offsets.length) {
+			resize(offsets.length * 2);
+		}
+		for (int i = slot(id); ; i = (i + 1) & mask) {
+			int previous = offsets[i];
+			if (previous == 0) {
+				keys[i] = id;
+				offsets[i] = offset;
+				size++;
+				return -1;
+			}
+			if (keys[i] == id) {
+				offsets[i] = offset;
+				return previous;
+			}
+		}
+	}
+
+
+	/**
+	 * Removes an id.
+	 * @param id
+	 * @return the previous offset, or -1 if the id was not present.
+	 */
+	public int remove(long id) {
+		int i = slot(id);
+		while (true) {
+			int offset = offsets[i];
+			if (offset == 0) {
+				return -1;
+			}
+			if (keys[i] == id) {
+				break;
+			}
+			i = (i + 1) & mask;
+		}
+
+		int previous = offsets[i];
+		// shift following entries back so that no probe sequence is interrupted
+		int gap = i;
+		for (int j = (i + 1) & mask; offsets[j] != 0; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				offsets[gap] = offsets[j];
+				gap = j;
+			}
+		}
+		offsets[gap] = 0;
+		size--;
+		return previous;
+	}
+
+
+	/**
+	 * Gets the number of ids.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Gets the number of slots, for iterating with {@link #keyAt(int)} and {@link #offsetAt(int)}.
+	 * @return
+	 */
+	public int capacity() {
+		return offsets.length;
+	}
+
+
+	/**
+	 * Gets the id in a slot.
+	 * @param slot
+	 * @return
+	 */
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+
+	/**
+	 * Gets the offset in a slot.
+	 * @param slot
+	 * @return the offset, or 0 if the slot is empty.
+	 */
+	public int offsetAt(int slot) {
+		return offsets[slot];
+	}
+
+
+	/**
+	 * Determines the home slot of an id.
+	 * @param id
+	 * @return
+	 */
+	private int slot(long id) {
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+
+	/**
+	 * Rehashes all entries into a new capacity.
+	 * @param capacity
+	 */
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldOffsets = offsets;
+		allocate(capacity);
+		for (int i = 0; i < oldOffsets.length; i++) {
+			int offset = oldOffsets[i];
+			if (offset != 0) {
+				int j = slot(oldKeys[i]);
+				while (offsets[j] != 0) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				offsets[j] = offset;
+			}
+		}
+	}
+
+
+	/**
+	 * Allocates empty arrays.
+	 * @param capacity a power of two.
+	 */
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		offsets = new int[capacity];
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+
+	/**
+	 * Determines the capacity for an expected size, keeping the table at most half full.
+	 * @param expectedSize
+	 * @return
+	 */
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2L) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
@@ -16,17 +16,35 @@
 
 package com.arthurpitman.common.data;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.arthurpitman.common.ByteArrayUtils;
+
 
 /**
  * Simple class for a set of long IDs.
+ * <p/>
+ * The IdSet keeps track of whether its IDs are sorted in ascending order without duplicates.
+ * Sorted IdSets support fast lookups and linear-time set operations.
+ * <p/>
+ * {@link #wrap(long[], int)} and {@link #asReadOnly()} create IdSets without copying IDs.
  */
 public class IdSet {
 
 	/** Default capacity of the IdSet. */
 	public static final int DEFAULT_CAPACITY = 10;
 
+	/** Size from which sorting uses a radix sort instead of a comparison sort. */
+	public static final int RADIX_SORT_THRESHOLD = 4096;
+
+	/** Maximum capacity of an IdSet. */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
 	private int size = 0;
 	private long[] ids;
+	private boolean sorted = true;
+	private boolean readOnly = false;
 
 
 	/**
@@ -45,6 +63,7 @@ public class IdSet {
 		this(array.length);
 		System.arraycopy(array, 0, ids, 0, array.length);
 		size = array.length;
+		sorted = isStrictlyAscending(ids, size);
 	}
 
 
@@ -59,17 +78,133 @@ public class IdSet {
 	}
 
 
+	/**
+	 * Creates a new IdSet that takes ownership of an array without copying it.
+	 * <p/>
+	 * The array must not be modified by the caller afterwards.
+	 * @param array
+	 * @return
+	 */
+	public static IdSet wrap(long[] array) {
+		return wrap(array, array.length);
+	}
+
+
+	/**
+	 * Creates a new IdSet that takes ownership of the beginning of an array without copying it.
+	 * <p/>
+	 * The array must not be modified by the caller afterwards.
+	 * @param array
+	 * @param size number of IDs in the array.
+	 * @return
+	 */
+	public static IdSet wrap(long[] array, int size) {
+		if ((size < 0) || (size > array.length)) {
+			throw new IllegalArgumentException("invalid size " + size + " for array of length " + array.length);
+		}
+		IdSet set = new IdSet(0);
+		set.ids = array;
+		set.size = size;
+		set.sorted = isStrictlyAscending(array, size);
+		return set;
+	}
+
+
+	/**
+	 * Creates a read-only IdSet sharing an array that is known to be strictly ascending, without checking it.
+	 * @param array
+	 * @return
+	 */
+	static IdSet wrapSortedReadOnly(long[] array) {
+		IdSet set = new IdSet(0);
+		set.ids = array;
+		set.size = array.length;
+		set.sorted = true;
+		set.readOnly = true;
+		return set;
+	}
+
+
+	/**
+	 * Creates a new IdSet from a byte array in the format used by {@link ByteArrayUtils}.
+	 * @param bytes
+	 * @return the IdSet, or null if {@code bytes} is null.
+	 */
+	public static IdSet fromByteArray(byte[] bytes) {
+		long[] array = ByteArrayUtils.convertByteArrayToLongArray(bytes);
+		return (array == null) ? null : wrap(array);
+	}
+
+
+	/**
+	 * Converts this IdSet to a byte array in the format used by {@link ByteArrayUtils}.
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[size * 8];
+		ByteBuffer.wrap(bytes).asLongBuffer().put(ids, 0, size);
+		return bytes;
+	}
+
+
+	/**
+	 * Gets a read-only view of this IdSet that shares its array.
+	 * <p/>
+	 * The view contains the IDs at the time of the call. It must not be used after this IdSet has been modified.
+	 * @return this IdSet if it is already read-only, otherwise a new view.
+	 */
+	public IdSet asReadOnly() {
+		if (readOnly) {
+			return this;
+		}
+		IdSet view = new IdSet(0);
+		view.ids = ids;
+		view.size = size;
+		view.sorted = sorted;
+		view.readOnly = true;
+		return view;
+	}
+
+
+	/**
+	 * Determines if the IdSet is read-only.
+	 * @return
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+
+	/**
+	 * Gets the array backing this IdSet without copying it.
+	 * <p/>
+	 * Only the first {@link #size()} elements are valid. The array must not be modified,
+	 * and may be replaced when IDs are added.
+	 * @return
+	 */
+	public long[] getBackingArray() {
+		return ids;
+	}
+
+
 	/**
 	 * Adds an ID.
 	 * @param id
+	 * @throws UnsupportedOperationException if the IdSet is read-only.
 	 */
 	public void add(long id) {
+		if (readOnly) {
+			throw new UnsupportedOperationException("IdSet is read-only");
+		}
 		if (size == ids.length) {
-			long[] newIds= new long[getIdealSize(size+1)];
-			System.arraycopy(ids, 0, newIds, 0, ids.length);
+			long[] newIds = new long[getGrowthSize(ids.length)];
+			System.arraycopy(ids, 0, newIds, 0, size);
 			ids = newIds;
 		}
 
+		if (sorted && (size > 0) && (id <= ids[size - 1])) {
+			sorted = false;
+		}
 		ids[size] = id;
 		size++;
 	}
@@ -109,13 +244,47 @@ public class IdSet {
 	 * @return ideal size, greater than the requested size.
 	 */
 	public static int getIdealSize(int size) {
-		size = size * 8;
+		long bytes = (long) size * 8;
 		for (int i = 4; i < 32; i++) {
-			if (size <= (1 << i) - 12) {
-				return ((1 << i) - 12) / 8;
+			if (bytes <= (1L << i) - 12) {
+				return (int) (((1L << i) - 12) / 8);
 			}
 		}
-		return size / 8;
+		return size;
+	}
+
+
+	/**
+	 * Determines the new size of a growing array.
+	 * <p/>
+	 * Small arrays grow to the next ideal size, large arrays by at least half their size,
+	 * so that appending is amortized constant time at every size.
+	 * @param size the current size.
+	 * @return the new size, greater than the current size.
+	 */
+	static int getGrowthSize(int size) {
+		if (size >= MAX_CAPACITY) {
+			throw new OutOfMemoryError("IdSet capacity exceeded");
+		}
+		long geometric = (long) size + (size >> 1) + 1;
+		return (int) Math.min(Math.max(getIdealSize(size + 1), geometric), MAX_CAPACITY);
+	}
+
+
+	/**
+	 * Gets a sorted IdSet with the same IDs.
+	 * @return this IdSet if it is already sorted, otherwise a sorted copy without duplicates.
+	 */
+	public IdSet toSorted() {
+		if (sorted) {
+			return this;
+		}
+		IdSet copy = new IdSet(size);
+		System.arraycopy(ids, 0, copy.ids, 0, size);
+		copy.size = size;
+		copy.sorted = false;
+		copy.sort();
+		return copy;
 	}
 
 
@@ -128,4 +297,332 @@ public class IdSet {
 		System.arraycopy(ids, 0, array, 0, size);
 		return array;
 	}
+
+
+	/**
+	 * Determines if the IdSet is sorted in ascending order without duplicates.
+	 * @return
+	 */
+	public boolean isSorted() {
+		return sorted;
+	}
+
+
+	/**
+	 * Sorts the IDs in ascending order and removes duplicates.
+	 * @throws UnsupportedOperationException if the IdSet is read-only and not sorted.
+	 */
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		if (readOnly) {
+			throw new UnsupportedOperationException("IdSet is read-only");
+		}
+		sortArray(ids, size);
+		size = removeDuplicates(ids, size);
+		sorted = true;
+	}
+
+
+	/**
+	 * Determines if the IdSet contains an ID.
+	 * <p/>
+	 * Sorted IdSets use a binary search, others a linear search.
+	 * @param id
+	 * @return
+	 */
+	public boolean contains(long id) {
+		if (sorted) {
+			return Arrays.binarySearch(ids, 0, size, id) >= 0;
+		}
+		for (int i = 0; i < size; i++) {
+			if (ids[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Gets the IDs within a range.
+	 * @param from lowest ID, inclusive.
+	 * @param to highest ID, exclusive.
+	 * @return a new IdSet, sorted if this IdSet is sorted.
+	 */
+	public IdSet range(long from, long to) {
+		if (sorted) {
+			int start = lowerBound(ids, size, from);
+			int end = lowerBound(ids, size, to);
+			IdSet result = new IdSet(Math.max(end - start, 0));
+			for (int i = start; i < end; i++) {
+				result.ids[result.size++] = ids[i];
+			}
+			return result;
+		}
+
+		IdSet result = new IdSet();
+		for (int i = 0; i < size; i++) {
+			long id = ids[i];
+			if ((id >= from) && (id < to)) {
+				result.add(id);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Creates the union of two IdSets.
+	 * <p/>
+	 * Runs in linear time if both IdSets are sorted; unsorted IdSets are sorted into temporary copies first.
+	 * @param a
+	 * @param b
+	 * @return a new sorted IdSet.
+	 */
+	public static IdSet union(IdSet a, IdSet b) {
+		long[] x = a.sortedIds();
+		long[] y = b.sortedIds();
+		int xSize = a.sorted ? a.size : x.length;
+		int ySize = b.sorted ? b.size : y.length;
+
+		IdSet result = new IdSet(xSize + ySize);
+		long[] r = result.ids;
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while ((i < xSize) && (j < ySize)) {
+			long u = x[i];
+			long v = y[j];
+			if (u < v) {
+				r[n++] = u;
+				i++;
+			} else if (u > v) {
+				r[n++] = v;
+				j++;
+			} else {
+				r[n++] = u;
+				i++;
+				j++;
+			}
+		}
+		while (i < xSize) {
+			r[n++] = x[i++];
+		}
+		while (j < ySize) {
+			r[n++] = y[j++];
+		}
+		result.size = n;
+		return result;
+	}
+
+
+	/**
+	 * Creates the intersection of two IdSets.
+	 * <p/>
+	 * Runs in linear time if both IdSets are sorted; unsorted IdSets are sorted into temporary copies first.
+	 * @param a
+	 * @param b
+	 * @return a new sorted IdSet.
+	 */
+	public static IdSet intersection(IdSet a, IdSet b) {
+		long[] x = a.sortedIds();
+		long[] y = b.sortedIds();
+		int xSize = a.sorted ? a.size : x.length;
+		int ySize = b.sorted ? b.size : y.length;
+
+		IdSet result = new IdSet(Math.min(xSize, ySize));
+		long[] r = result.ids;
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while ((i < xSize) && (j < ySize)) {
+			long u = x[i];
+			long v = y[j];
+			if (u < v) {
+				i++;
+			} else if (u > v) {
+				j++;
+			} else {
+				r[n++] = u;
+				i++;
+				j++;
+			}
+		}
+		result.size = n;
+		return result;
+	}
+
+
+	/**
+	 * Creates the difference of two IdSets, the IDs in {@code a} that are not in {@code b}.
+	 * <p/>
+	 * Runs in linear time if both IdSets are sorted; unsorted IdSets are sorted into temporary copies first.
+	 * @param a
+	 * @param b
+	 * @return a new sorted IdSet.
+	 */
+	public static IdSet difference(IdSet a, IdSet b) {
+		long[] x = a.sortedIds();
+		long[] y = b.sortedIds();
+		int xSize = a.sorted ? a.size : x.length;
+		int ySize = b.sorted ? b.size : y.length;
+
+		IdSet result = new IdSet(xSize);
+		long[] r = result.ids;
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while ((i < xSize) && (j < ySize)) {
+			long u = x[i];
+			long v = y[j];
+			if (u < v) {
+				r[n++] = u;
+				i++;
+			} else if (u > v) {
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		while (i < xSize) {
+			r[n++] = x[i++];
+		}
+		result.size = n;
+		return result;
+	}
+
+
+	/**
+	 * Gets the IDs in ascending order without duplicates.
+	 * @return the internal array if the IdSet is sorted, otherwise a sorted copy of exactly the right length.
+	 */
+	private long[] sortedIds() {
+		if (sorted) {
+			return ids;
+		}
+		long[] array = toArray();
+		sortArray(array, array.length);
+		int n = removeDuplicates(array, array.length);
+		if (n == array.length) {
+			return array;
+		}
+		long[] trimmed = new long[n];
+		System.arraycopy(array, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
+
+	/**
+	 * Sorts the beginning of an array in ascending order.
+	 * <p/>
+	 * Large arrays are sorted with a least-significant-digit radix sort, which skips digits shared by all values.
+	 * @param array
+	 * @param size number of elements to sort.
+	 */
+	static void sortArray(long[] array, int size) {
+		if (size < RADIX_SORT_THRESHOLD) {
+			Arrays.sort(array, 0, size);
+			return;
+		}
+
+		// determine which bytes differ, flipping the sign bit so that negative values sort first
+		long first = array[0] ^ Long.MIN_VALUE;
+		long differing = 0;
+		for (int i = 1; i < size; i++) {
+			differing |= (array[i] ^ Long.MIN_VALUE) ^ first;
+		}
+
+		long[] source = array;
+		long[] target = new long[size];
+		int[] counts = new int[256];
+		for (int shift = 0; shift < 64; shift += 8) {
+			if (((differing >>> shift) & 0xFF) == 0) {
+				continue;
+			}
+
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < size; i++) {
+				counts[(int) (((source[i] ^ Long.MIN_VALUE) >>> shift) & 0xFF)]++;
+			}
+			int offset = 0;
+			for (int d = 0; d < 256; d++) {
+				int count = counts[d];
+				counts[d] = offset;
+				offset += count;
+			}
+			for (int i = 0; i < size; i++) {
+				long value = source[i];
+				target[counts[(int) (((value ^ Long.MIN_VALUE) >>> shift) & 0xFF)]++] = value;
+			}
+
+			long[] swap = source;
+			source = target;
+			target = swap;
+		}
+
+		if (source != array) {
+			System.arraycopy(source, 0, array, 0, size);
+		}
+	}
+
+
+	/**
+	 * Removes duplicates from a sorted array in place.
+	 * @param array
+	 * @param size
+	 * @return the new size.
+	 */
+	private static int removeDuplicates(long[] array, int size) {
+		if (size == 0) {
+			return 0;
+		}
+		int n = 1;
+		for (int i = 1; i < size; i++) {
+			if (array[i] != array[n - 1]) {
+				array[n++] = array[i];
+			}
+		}
+		return n;
+	}
+
+
+	/**
+	 * Determines if an array is in strictly ascending order.
+	 * @param array
+	 * @param size
+	 * @return
+	 */
+	private static boolean isStrictlyAscending(long[] array, int size) {
+		for (int i = 1; i < size; i++) {
+			if (array[i] <= array[i - 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Finds the index of the first element not less than a value in a sorted array.
+	 * @param array
+	 * @param size
+	 * @param value
+	 * @return
+	 */
+	private static int lowerBound(long[] array, int size, long value) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (array[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.arthurpitman.common.ByteArrayUtils;
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * Reads and writes compact snapshot files of ids, used to restore provider caches after a restart.
+ */
+class IdSnapshot {
+
+	private static final int MAGIC = 0x49445331;
+	private static final int HEADER_SIZE = 8;
+
+
+	/**
+	 * Writes ids to a snapshot file.
+	 * <p/>
+	 * The file is written to a temporary file first and then renamed, so an existing snapshot
+	 * is never left half-written.
+	 * @param file
+	 * @param ids
+	 * @throws CoreException
+	 */
+	public static void write(File file, long[] ids) throws CoreException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(ids.length);
+		writeFile(file, header.array(), ByteArrayUtils.convertLongArrayToByteArray(ids));
+	}
+
+
+	/**
+	 * Reads ids from a snapshot file with a single sequential read.
+	 * @param file
+	 * @return the ids, or null if the file does not exist or is not a valid snapshot.
+	 * @throws CoreException
+	 */
+	public static long[] read(File file) throws CoreException {
+		byte[] bytes = readFile(file);
+		if ((bytes == null) || (bytes.length < HEADER_SIZE)) {
+			return null;
+		}
+
+		ByteBuffer header = ByteBuffer.wrap(bytes, 0, HEADER_SIZE);
+		int count = header.getInt(4);
+		if ((header.getInt(0) != MAGIC) || (count < 0) || ((long) count * 8 != bytes.length - HEADER_SIZE)) {
+			return null;
+		}
+
+		long[] ids = new long[count];
+		ByteBuffer.wrap(bytes, HEADER_SIZE, count * 8).asLongBuffer().get(ids);
+		return ids;
+	}
+
+
+	/**
+	 * Writes a file atomically by writing a temporary file first and then renaming it.
+	 * @param file
+	 * @param parts the contents of the file, written one after the other.
+	 * @throws CoreException
+	 */
+	static void writeFile(File file, byte[]... parts) throws CoreException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		FileOutputStream outputStream = null;
+		try {
+			outputStream = new FileOutputStream(tempFile);
+			for (byte[] part : parts) {
+				outputStream.write(part);
+			}
+			outputStream.getFD().sync();
+		} catch (IOException e) {
+			throw new CoreException(e);
+		} finally {
+			if (outputStream != null) {
+				try {
+					outputStream.close();
+				} catch (IOException e) {
+					throw new CoreException(e);
+				}
+			}
+		}
+
+		if (!tempFile.renameTo(file)) {
+			throw new CoreException("unable to write " + file.getPath());
+		}
+	}
+
+
+	/**
+	 * Reads a whole file with a single sequential read.
+	 * @param file
+	 * @return the contents of the file, or null if the file does not exist or is too large.
+	 * @throws CoreException
+	 */
+	static byte[] readFile(File file) throws CoreException {
+		if (!file.exists()) {
+			return null;
+		}
+
+		long length = file.length();
+		if (length > Integer.MAX_VALUE) {
+			return null;
+		}
+
+		byte[] bytes = new byte[(int) length];
+		DataInputStream inputStream = null;
+		try {
+			inputStream = new DataInputStream(new FileInputStream(file));
+			inputStream.readFully(bytes);
+		} catch (IOException e) {
+			throw new CoreException(e);
+		} finally {
+			if (inputStream != null) {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+					throw new CoreException(e);
+				}
+			}
+		}
+		return bytes;
+	}
+}
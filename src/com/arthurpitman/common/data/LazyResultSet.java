@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.Arrays;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * A result set for IdObjects that resolves objects in windows as they are accessed.
+ * <p/>
+ * Unlike {@link ResultSet}, the ids are fixed up front and objects that turn out to be unavailable
+ * are reported as null. Not thread-safe.
+ * @param <T>
+ */
+public class LazyResultSet<T extends IdObject> {
+
+	/**
+	 * Loads a window of objects.
+	 * @param <T>
+	 */
+	public interface Loader<T extends IdObject> {
+		ResultSet<T> load(IdSet ids) throws CoreException;
+	}
+
+	private final long[] ids;
+	private final Object[] values;
+	private final boolean[] loadedWindows;
+	private final int windowSize;
+	private final Loader<T> loader;
+
+
+	/**
+	 * Creates a new LazyResultSet.
+	 * @param ids the ids, which will be sorted and deduplicated.
+	 * @param windowSize number of objects loaded at a time, must be positive.
+	 * @param loader
+	 */
+	public LazyResultSet(IdSet ids, int windowSize, Loader<T> loader) {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("invalid window size " + windowSize);
+		}
+		this.ids = ids.toSorted().toArray();
+		this.windowSize = windowSize;
+		this.loader = loader;
+		values = new Object[this.ids.length];
+		loadedWindows = new boolean[(this.ids.length + windowSize - 1) / windowSize];
+	}
+
+
+	/**
+	 * Gets an object by ID, loading its window if necessary.
+	 * @param id
+	 * @return the object or null if it is not part of the set or unavailable.
+	 * @throws CoreException
+	 */
+	public T get(long id) throws CoreException {
+		int i = Arrays.binarySearch(ids, id);
+		if (i < 0) {
+			return null;
+		} else {
+			return valueAt(i);
+		}
+	}
+
+
+	/**
+	 * Gets an ID by index.
+	 * @param index
+	 * @return
+	 */
+	public long idAt(int index) {
+		return ids[index];
+	}
+
+
+	/**
+	 * Gets an object by index, loading its window if necessary.
+	 * @param index
+	 * @return the object or null if it is unavailable.
+	 * @throws CoreException
+	 */
+	@SuppressWarnings("unchecked")
+	public T valueAt(int index) throws CoreException {
+		loadWindow(index / windowSize);
+		return (T) values[index];
+	}
+
+
+	/**
+	 * Determines if the object at an index has already been loaded.
+	 * @param index
+	 * @return
+	 */
+	public boolean isLoaded(int index) {
+		return loadedWindows[index / windowSize];
+	}
+
+
+	/**
+	 * Loads all windows overlapping a range of indices.
+	 * @param start first index, inclusive.
+	 * @param end last index, exclusive.
+	 * @throws CoreException
+	 */
+	public void load(int start, int end) throws CoreException {
+		if (start >= end) {
+			return;
+		}
+		int last = (end - 1) / windowSize;
+		for (int window = start / windowSize; window <= last; window++) {
+			loadWindow(window);
+		}
+	}
+
+
+	/**
+	 * Gets the size of the LazyResultSet, including objects that have not been loaded yet.
+	 * @return
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+
+	/**
+	 * Loads a window, unless it has already been loaded.
+	 * @param window
+	 * @throws CoreException
+	 */
+	private void loadWindow(int window) throws CoreException {
+		if (loadedWindows[window]) {
+			return;
+		}
+
+		int start = window * windowSize;
+		int end = Math.min(start + windowSize, ids.length);
+		IdSet windowIds = new IdSet(end - start);
+		for (int i = start; i < end; i++) {
+			windowIds.add(ids[i]);
+		}
+
+		ResultSet<T> result = loader.load(windowIds);
+		for (int i = start; i < end; i++) {
+			values[i] = result.get(ids[i]);
+		}
+		loadedWindows[window] = true;
+	}
+}
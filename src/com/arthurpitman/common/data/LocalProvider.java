@@ -16,11 +16,14 @@
 
 package com.arthurpitman.common.data;
 
-import java.util.Arrays;
-
-import android.support.v4.util.LruCache;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.arthurpitman.common.CoreException;
+import com.arthurpitman.common.Log;
 
 
 /**
@@ -28,7 +31,14 @@ import com.arthurpitman.common.CoreException;
  * @param <T>
  */
 public abstract class LocalProvider<T extends IdObject>{
-	private LruCache<Long, T> cache;
+	private static final String TAG = "LocalProvider";
+
+	private final ProviderStats stats = new ProviderStats();
+	private ProviderCache<T> cache;
+	private volatile long timeToLive = 0;
+	private volatile Executor prefetchExecutor;
+	private final Prefetcher prefetcher = new Prefetcher();
+	private volatile QueryCache queryCache;
 
 
 	/**
@@ -36,7 +46,17 @@ public abstract class LocalProvider<T extends IdObject>{
 	 * @param cacheSize
 	 */
 	public LocalProvider(int cacheSize) {
-		cache = new LruCache<Long, T>(cacheSize);
+		cache = new ProviderCache<T>(cacheSize, stats);
+	}
+
+
+	/**
+	 * Creates a LocalProvider with a cache bounded by the estimated size of its objects.
+	 * @param maxCacheBytes maximum total size of cached objects in bytes.
+	 * @param weigher weigher used to estimate object sizes.
+	 */
+	public LocalProvider(int maxCacheBytes, Weigher<? super T> weigher) {
+		cache = new ProviderCache<T>(maxCacheBytes, weigher, stats);
 	}
 
 
@@ -47,9 +67,11 @@ public abstract class LocalProvider<T extends IdObject>{
 	 * @throws CoreException
 	 */
 	public T get(long id) throws CoreException {
-		T o = cache.get(id);
-		if ((o == null) || o.isStale()) {
-			o = getLocal(id);
+		T o = cache.lookup(id);
+		if ((o == null) || isExpired(o, System.currentTimeMillis())) {
+			o = loadLocal(id);
+		} else {
+			stats.recordMemoryHit();
 		}
 		return o;
 	}
@@ -62,25 +84,126 @@ public abstract class LocalProvider<T extends IdObject>{
 	 * @throws CoreException
 	 */
 	public ResultSet<T> get(IdSet ids) throws CoreException {
-		long[] sortedIds = ids.toArray();
-		Arrays.sort(sortedIds);
-		ResultSet<T> result = new ResultSet<T>(sortedIds.length);
-		for (long id : sortedIds) {
-			T o = cache.get(id);
-			if ((o == null) || o.isStale()) {
-				o = getLocal(id);
-				if (o != null) {
-					cache.put(id, o);
-					result.append(o);
+		IdSet sortedIds = ids.toSorted();
+		ResultSet<T> result = getSorted(sortedIds, true);
+		prefetch(sortedIds);
+		return result;
+	}
+
+
+	/**
+	 * Gets a set of objects specified by a sorted {@link IdSet}.
+	 * @param sortedIds
+	 * @param recordAccess true to record the accesses with the cache policy and statistics,
+	 * false for prefetching.
+	 * @return
+	 * @throws CoreException
+	 */
+	private ResultSet<T> getSorted(IdSet sortedIds, boolean recordAccess) throws CoreException {
+		int n = sortedIds.size();
+		Object[] cached = new Object[n];
+		IdSet localIds = null;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			long id = sortedIds.get(i);
+			T o = recordAccess ? cache.lookup(id) : cache.get(id);
+			if ((o == null) || isExpired(o, now)) {
+				if (localIds == null) {
+					localIds = new IdSet();
 				}
+				localIds.add(id);
 			} else {
-				result.append(o);
+				if (recordAccess) {
+					stats.recordMemoryHit();
+				}
+				cached[i] = o;
 			}
 		}
+
+		ResultSet<T> local = (localIds != null) ? loadLocalBulk(localIds) : null;
+		ResultSet<T> result = new ResultSet<T>(n);
+		for (int i = 0; i < n; i++) {
+			@SuppressWarnings("unchecked")
+			T o = (T) cached[i];
+			if (o == null) {
+				o = local.get(sortedIds.get(i));
+				if (o == null) {
+					continue;
+				}
+				cache.offer(o);
+			}
+			result.append(o);
+		}
 		return result;
 	}
 
 
+	/**
+	 * Gets a set of objects specified by an {@link IdSet}, loading them in windows as they are accessed.
+	 * <p/>
+	 * Each window is loaded with {@link #get(IdSet)}, which uses the bulk local path.
+	 * @param ids
+	 * @param windowSize number of objects loaded at a time.
+	 * @return
+	 */
+	public LazyResultSet<T> getLazy(IdSet ids, int windowSize) {
+		return new LazyResultSet<T>(ids, windowSize, new LazyResultSet.Loader<T>() {
+			@Override
+			public ResultSet<T> load(IdSet windowIds) throws CoreException {
+				return get(windowIds);
+			}
+		});
+	}
+
+
+	/**
+	 * Enables or disables prefetching.
+	 * <p/>
+	 * While enabled, requests for sets of objects are observed by a {@link Prefetcher}. When requests
+	 * follow a regular pattern, the predicted next set is loaded into the cache on the specified
+	 * {@link Executor}. Prefetched objects are subject to the cache policy, but prefetching does not
+	 * count as an access.
+	 * @param executor executor used for prefetching, or null to disable.
+	 */
+	public void setPrefetchExecutor(Executor executor) {
+		prefetcher.reset();
+		prefetchExecutor = executor;
+	}
+
+
+	/**
+	 * Observes a request and prefetches the predicted next set of objects, if prefetching is enabled.
+	 * @param sortedIds
+	 */
+	private void prefetch(IdSet sortedIds) {
+		Executor executor = prefetchExecutor;
+		if (executor == null) {
+			return;
+		}
+
+		final IdSet prediction = prefetcher.observe(sortedIds);
+		if (prediction == null) {
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						getSorted(prediction.toSorted(), false);
+					} catch (CoreException e) {
+						Log.e(TAG, "exception while prefetching: " + e.toString());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the request itself has completed, so only the prefetch is lost
+			Log.e(TAG, "prefetch rejected: " + e.toString());
+		}
+	}
+
+
 	/**
 	 * Refreshes a single object.
 	 * @param id
@@ -88,16 +211,16 @@ public abstract class LocalProvider<T extends IdObject>{
 	 * @throws CoreException
 	 */
 	public void refresh(long id, boolean defer) throws CoreException {
+		QueryCache queries = queryCache;
+		if (queries != null) {
+			queries.invalidate(id);
+		}
 		if (defer) {
-			T o = cache.get(id);
-			if (o != null) {
-				o.setStale(true);
-			}
+			cache.markStale(id);
+		} else if (cache.get(id) != null) {
+			reloadCached(id);
 		} else {
-			if (cache.get(id) != null) {
-				T o = getLocal(id);
-				cache.put(o.getId(), o);
-			}
+			cache.discard(id);
 		}
 	}
 
@@ -109,11 +232,231 @@ public abstract class LocalProvider<T extends IdObject>{
 	 * @throws CoreException
 	 */
 	public void refresh(IdSet ids, boolean defer) throws CoreException {
+		QueryCache queries = queryCache;
+		if (queries != null) {
+			queries.invalidate(ids);
+		}
+		if (defer) {
+			cache.markStale(ids);
+			return;
+		}
+		IdSet cachedIds = cache.getCachedIds(ids);
 		int size = ids.size();
-		for (int i = 0; i < size; i++) {
+		for (int i = 0, j = 0; i < size; i++) {
 			long id = ids.get(i);
-			refresh(id, defer);
+			if ((j < cachedIds.size()) && (cachedIds.get(j) == id)) {
+				reloadCached(id);
+				j++;
+			} else {
+				cache.discard(id);
+			}
+		}
+	}
+
+
+	/**
+	 * Loads a cached object again from local storage, dropping it if it is no longer stored.
+	 * @param id
+	 * @throws CoreException
+	 */
+	private void reloadCached(long id) throws CoreException {
+		T o = loadLocal(id);
+		if (o != null) {
+			cache.put(o.getId(), o);
+		} else {
+			cache.discard(id);
+		}
+	}
+
+
+	/**
+	 * Puts objects that have just been written to local storage into the cache, subject to the cache policy,
+	 * and invalidates cached queries containing them.
+	 * <p/>
+	 * Derived classes that write to local storage call this rather than refreshing, which would read
+	 * the objects back.
+	 * @param objects
+	 */
+	protected void offerStored(List<T> objects) {
+		IdSet ids = new IdSet(objects.size());
+		long now = System.currentTimeMillis();
+		for (T o : objects) {
+			if (o.getFetchTime() == 0) {
+				o.setFetchTime(now);
+			}
+			cache.offer(o);
+			ids.add(o.getId());
+		}
+
+		QueryCache queries = queryCache;
+		if (queries != null) {
+			queries.invalidate(ids);
+		}
+	}
+
+
+	/**
+	 * Sets the query cache invalidated by refreshes.
+	 * <p/>
+	 * Cached queries whose results contain refreshed objects are invalidated.
+	 * @param queryCache the query cache, or null for none.
+	 */
+	public void setQueryCache(QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
+
+	/**
+	 * Sets the time-to-live of cached objects.
+	 * <p/>
+	 * Cached objects older than this are reloaded from local storage, as if they were stale.
+	 * Objects are timed from the fetch time restored by local storage, or from when they were loaded
+	 * if local storage does not restore it.
+	 * @param timeToLive time in milliseconds, or 0 to disable.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+
+	/**
+	 * Gets the time-to-live of cached objects.
+	 * @return time in milliseconds, or 0 if disabled.
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+
+	/**
+	 * Sets the admission policy of the cache.
+	 * <p/>
+	 * By default, every object is admitted and the least-recently-used object is evicted.
+	 * @param policy the policy, such as a {@link FrequencyCachePolicy}, or null to admit all objects.
+	 */
+	public void setCachePolicy(CachePolicy policy) {
+		cache.setPolicy(policy);
+	}
+
+
+	/**
+	 * Sets the type of the second tier of the cache, which keeps evicted objects by weak or soft reference.
+	 * @param secondTier {@code ProviderCache.SECOND_TIER_NONE}, {@code ProviderCache.SECOND_TIER_WEAK}
+	 * or {@code ProviderCache.SECOND_TIER_SOFT}.
+	 */
+	public void setCacheSecondTier(int secondTier) {
+		cache.setSecondTier(secondTier);
+	}
+
+
+	/**
+	 * Saves the ids of all cached objects to a snapshot file.
+	 * <p/>
+	 * Call this on a background thread, for example when the application is moved to the background
+	 * or asked to trim memory, and call {@link #loadSnapshot(File)} on startup.
+	 * @param file
+	 * @throws CoreException
+	 */
+	public void saveSnapshot(File file) throws CoreException {
+		IdSnapshot.write(file, cache.hotIds());
+	}
+
+
+	/**
+	 * Loads the objects listed in a snapshot file from local storage into the cache.
+	 * <p/>
+	 * The ids are read with a single sequential read and the objects are loaded with the bulk local path.
+	 * @param file
+	 * @return number of objects loaded into the cache.
+	 * @throws CoreException
+	 */
+	public int loadSnapshot(File file) throws CoreException {
+		long[] ids = IdSnapshot.read(file);
+		if ((ids == null) || (ids.length == 0)) {
+			return 0;
+		}
+
+		ResultSet<T> objects = loadLocalBulk(IdSet.wrap(ids));
+		int count = 0;
+		for (long id : ids) {
+			T o = objects.get(id);
+			if ((o != null) && cache.offer(o)) {
+				count++;
+			}
 		}
+		return count;
+	}
+
+
+	/**
+	 * Gets a snapshot of the cache statistics.
+	 * @return
+	 */
+	public ProviderStats.Snapshot getStats() {
+		return stats.snapshot();
+	}
+
+
+	/**
+	 * Resets the cache statistics.
+	 */
+	public void resetStats() {
+		stats.reset();
+	}
+
+
+	/**
+	 * Determines if an object is stale or has outlived the time-to-live.
+	 * @param o
+	 * @param now current time in milliseconds since the epoch.
+	 * @return
+	 */
+	protected boolean isExpired(T o, long now) {
+		if (o.isStale()) {
+			return true;
+		}
+		long fetchTime = o.getFetchTime();
+		return (timeToLive > 0) && (fetchTime != 0) && (now - fetchTime > timeToLive);
+	}
+
+
+	/**
+	 * Retrieves an object from local storage and records its fetch time, unless local storage restored it.
+	 * @param id
+	 * @return
+	 * @throws CoreException
+	 */
+	private T loadLocal(long id) throws CoreException {
+		long start = System.nanoTime();
+		T o = getLocal(id);
+		stats.recordGetLocal(o != null, System.nanoTime() - start);
+		if ((o != null) && (o.getFetchTime() == 0)) {
+			o.setFetchTime(System.currentTimeMillis());
+		}
+		return o;
+	}
+
+
+	/**
+	 * Retrieves a set of objects from local storage and records their fetch time, unless local storage restored it.
+	 * @param ids
+	 * @return
+	 * @throws CoreException
+	 */
+	private ResultSet<T> loadLocalBulk(IdSet ids) throws CoreException {
+		long start = System.nanoTime();
+		List<T> objects = getLocalBulk(ids);
+		stats.recordGetLocalBulk(ids.size(), objects.size(), System.nanoTime() - start);
+
+		ResultSet<T> result = new ResultSet<T>(objects.size());
+		long now = System.currentTimeMillis();
+		for (T o : objects) {
+			if (o.getFetchTime() == 0) {
+				o.setFetchTime(now);
+			}
+			result.append(o);
+		}
+		return result;
 	}
 
 
@@ -126,4 +469,26 @@ public abstract class LocalProvider<T extends IdObject>{
 	 * @throws CoreException
 	 */
 	protected abstract T getLocal(long id) throws CoreException;
+
+
+	/**
+	 * Retrieves a set of objects from local storage.
+	 * <p/>
+	 * The default implementation calls {@link #getLocal(long)} for each id. Override this in derived
+	 * classes to retrieve all objects with a single query.
+	 * @param ids The ids of the objects
+	 * @return The objects that are available, preferably in ascending id order
+	 * @throws CoreException
+	 */
+	protected List<T> getLocalBulk(IdSet ids) throws CoreException {
+		int size = ids.size();
+		List<T> objects = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++) {
+			T o = getLocal(ids.get(i));
+			if (o != null) {
+				objects.add(o);
+			}
+		}
+		return objects;
+	}
 }
\ No newline at end of file
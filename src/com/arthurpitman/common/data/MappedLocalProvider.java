@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * A {@link LocalProvider} backed by a {@link MappedStore}.
+ * <p/>
+ * Objects written through {@link #store(IdObject)} and {@link #store(List)} are offered to the cache
+ * directly; objects removed through {@link #remove(IdSet)} are dropped from the cache.
+ * @param <T>
+ */
+public class MappedLocalProvider<T extends IdObject> extends LocalProvider<T> {
+
+	private final MappedStore<T> store;
+
+
+	/**
+	 * Creates a new MappedLocalProvider.
+	 * @param cacheSize
+	 * @param store
+	 */
+	public MappedLocalProvider(int cacheSize, MappedStore<T> store) {
+		super(cacheSize);
+		this.store = store;
+	}
+
+
+	/**
+	 * Creates a new MappedLocalProvider with a cache limited by weight.
+	 * @param maxCacheBytes
+	 * @param weigher
+	 * @param store
+	 */
+	public MappedLocalProvider(int maxCacheBytes, Weigher<? super T> weigher, MappedStore<T> store) {
+		super(maxCacheBytes, weigher);
+		this.store = store;
+	}
+
+
+	/**
+	 * Gets the underlying store.
+	 * @return
+	 */
+	public MappedStore<T> getStore() {
+		return store;
+	}
+
+
+	/**
+	 * Stores an object and offers it to the cache.
+	 * @param o
+	 * @throws CoreException
+	 */
+	public void store(T o) throws CoreException {
+		store.put(o);
+		offerStored(Collections.singletonList(o));
+	}
+
+
+	/**
+	 * Stores a set of objects in bulk and offers them to the cache.
+	 * @param set
+	 * @throws CoreException
+	 */
+	public void store(List<T> set) throws CoreException {
+		store.put(set);
+		offerStored(set);
+	}
+
+
+	/**
+	 * Removes a set of objects from the store and the cache.
+	 * @param ids
+	 * @throws CoreException
+	 */
+	public void remove(IdSet ids) throws CoreException {
+		store.remove(ids);
+		refresh(ids, false);
+	}
+
+
+	@Override
+	protected T getLocal(long id) throws CoreException {
+		return store.get(id);
+	}
+
+
+	@Override
+	protected List<T> getLocalBulk(IdSet ids) throws CoreException {
+		return store.get(ids);
+	}
+}
@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.arthurpitman.common.ByteArrayWriter;
+import com.arthurpitman.common.CoreException;
+
+
+/**
+ * A persistent store of IdObjects in an append-only, memory-mapped log file.
+ * <p/>
+ * Each record consists of the id, the payload length, a CRC32 of both and the payload encoded by an
+ * {@link IdObjectCodec}; removals are recorded with a length of -1. An in-memory hash index maps ids to
+ * the offsets of their latest records, so a lookup is a hash probe plus a read from the mapping.
+ * <p/>
+ * Writes go to the mapping and reach the disk when the system writes back the pages, or when
+ * {@link #flush()} or {@link #close()} is called. When the file is opened, records are scanned and the
+ * log is truncated at the first incomplete or corrupt record, dropping any writes after it.
+ * Replaced and removed records take up space until {@link #compact()} is called.
+ * <p/>
+ * The file is limited to 2 GB.
+ * @param <T>
+ */
+public class MappedStore<T extends IdObject> {
+
+	private static final int MAGIC = 0x49444D53;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int REMOVED = -1;
+	private static final int MIN_CAPACITY = 64 * 1024;
+
+	private final File file;
+	private final IdObjectCodec<T> codec;
+	private final ByteArrayWriter writer = new ByteArrayWriter();
+	private final CRC32 crc = new CRC32();
+
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private IdOffsetIndex index;
+	private int end;
+	private long garbageBytes;
+	private byte[] readBuffer = new byte[256];
+
+
+	/**
+	 * Opens a MappedStore, creating the file if necessary and recovering from incomplete writes.
+	 * @param file
+	 * @param codec codec used to encode and decode objects.
+	 * @throws CoreException
+	 */
+	public MappedStore(File file, IdObjectCodec<T> codec) throws CoreException {
+		this.file = file;
+		this.codec = codec;
+		open();
+	}
+
+
+	/**
+	 * Gets an object.
+	 * @param id
+	 * @return the object, or null if it is not stored.
+	 * @throws CoreException
+	 */
+	public synchronized T get(long id) throws CoreException {
+		checkOpen();
+		int offset = index.get(id);
+		if (offset < 0) {
+			return null;
+		}
+		return read(id, offset);
+	}
+
+
+	/**
+	 * Gets a set of objects.
+	 * @param ids
+	 * @return the stored objects, in ascending id order.
+	 * @throws CoreException
+	 */
+	public synchronized List<T> get(IdSet ids) throws CoreException {
+		checkOpen();
+		IdSet sortedIds = ids.toSorted();
+		int size = sortedIds.size();
+		List<T> objects = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++) {
+			long id = sortedIds.get(i);
+			int offset = index.get(id);
+			if (offset >= 0) {
+				objects.add(read(id, offset));
+			}
+		}
+		return objects;
+	}
+
+
+	/**
+	 * Determines if an object is stored.
+	 * @param id
+	 * @return
+	 */
+	public synchronized boolean contains(long id) {
+		return (index != null) && (index.get(id) >= 0);
+	}
+
+
+	/**
+	 * Gets the ids of all stored objects.
+	 * @return a sorted IdSet.
+	 * @throws CoreException
+	 */
+	public synchronized IdSet getIds() throws CoreException {
+		checkOpen();
+		IdSet ids = new IdSet(index.size());
+		int capacity = index.capacity();
+		for (int i = 0; i < capacity; i++) {
+			if (index.offsetAt(i) != 0) {
+				ids.add(index.keyAt(i));
+			}
+		}
+		ids.sort();
+		return ids;
+	}
+
+
+	/**
+	 * Stores an object, replacing any previous version.
+	 * @param o
+	 * @throws CoreException
+	 */
+	public synchronized void put(T o) throws CoreException {
+		checkOpen();
+		writer.reset();
+		encodeRecord(o);
+		append(writer.size());
+	}
+
+
+	/**
+	 * Stores a set of objects with a single write to the mapping.
+	 * @param set
+	 * @throws CoreException
+	 */
+	public synchronized void put(List<T> set) throws CoreException {
+		checkOpen();
+		writer.reset();
+		for (T o : set) {
+			encodeRecord(o);
+		}
+		append(writer.size());
+	}
+
+
+	/**
+	 * Removes an object.
+	 * @param id
+	 * @throws CoreException
+	 */
+	public synchronized void remove(long id) throws CoreException {
+		checkOpen();
+		if (index.get(id) < 0) {
+			return;
+		}
+		writer.reset();
+		encodeRemoval(id);
+		append(writer.size());
+	}
+
+
+	/**
+	 * Removes a set of objects with a single write to the mapping.
+	 * @param ids
+	 * @throws CoreException
+	 */
+	public synchronized void remove(IdSet ids) throws CoreException {
+		checkOpen();
+		writer.reset();
+		int size = ids.size();
+		for (int i = 0; i < size; i++) {
+			long id = ids.get(i);
+			if (index.get(id) >= 0) {
+				encodeRemoval(id);
+			}
+		}
+		append(writer.size());
+	}
+
+
+	/**
+	 * Gets the number of stored objects.
+	 * @return
+	 */
+	public synchronized int size() {
+		return (index == null) ? 0 : index.size();
+	}
+
+
+	/**
+	 * Gets the number of bytes taken up by replaced and removed records.
+	 * @return
+	 */
+	public synchronized long getGarbageBytes() {
+		return garbageBytes;
+	}
+
+
+	/**
+	 * Gets the number of bytes in the log.
+	 * @return
+	 */
+	public synchronized long getLogBytes() {
+		return end;
+	}
+
+
+	/**
+	 * Writes changes in the mapping to disk.
+	 * @throws CoreException
+	 */
+	public synchronized void flush() throws CoreException {
+		checkOpen();
+		buffer.force();
+	}
+
+
+	/**
+	 * Rewrites the log with only the latest record of each stored object.
+	 * <p/>
+	 * The new log is written to a temporary file first and then renamed, so a crash during compaction
+	 * leaves the old log intact.
+	 * @throws CoreException
+	 */
+	public synchronized void compact() throws CoreException {
+		checkOpen();
+		int capacity = index.capacity();
+		int[] positions = new int[index.size()];
+		int n = 0;
+		for (int i = 0; i < capacity; i++) {
+			int offset = index.offsetAt(i);
+			if (offset != 0) {
+				positions[n++] = offset;
+			}
+		}
+		// keep the existing record order for sequential reads and writes
+		Arrays.sort(positions, 0, n);
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		IdOffsetIndex newIndex = new IdOffsetIndex(n);
+		int newEnd = HEADER_SIZE;
+		FileOutputStream fileStream = null;
+		try {
+			fileStream = new FileOutputStream(tempFile);
+			BufferedOutputStream outputStream = new BufferedOutputStream(fileStream, 64 * 1024);
+			outputStream.write(createHeader());
+			for (int i = 0; i < n; i++) {
+				int offset = positions[i];
+				int length = RECORD_HEADER_SIZE + buffer.getInt(offset + 8);
+				byte[] record = getReadBuffer(length);
+				buffer.position(offset);
+				buffer.get(record, 0, length);
+				outputStream.write(record, 0, length);
+				newIndex.put(buffer.getLong(offset), newEnd);
+				newEnd += length;
+			}
+			outputStream.flush();
+			fileStream.getFD().sync();
+		} catch (IOException e) {
+			throw new CoreException(e);
+		} finally {
+			if (fileStream != null) {
+				try {
+					fileStream.close();
+				} catch (IOException e) {
+					throw new CoreException(e);
+				}
+			}
+		}
+
+		closeFile();
+		if (!tempFile.renameTo(file)) {
+			open();
+			throw new CoreException("unable to compact " + file.getPath());
+		}
+		openFile();
+		index = newIndex;
+		end = newEnd;
+		garbageBytes = 0;
+		map(Math.max(end, MIN_CAPACITY));
+	}
+
+
+	/**
+	 * Flushes and closes the store, trimming the file to the end of the log.
+	 * @throws CoreException
+	 */
+	public synchronized void close() throws CoreException {
+		if (channel == null) {
+			return;
+		}
+		buffer.force();
+		try {
+			channel.truncate(end);
+		} catch (IOException e) {
+			throw new CoreException(e);
+		} finally {
+			closeFile();
+			index = null;
+		}
+	}
+
+
+	/**
+	 * Opens the file, recovers the log and builds the index.
+	 * @throws CoreException
+	 */
+	private void open() throws CoreException {
+		openFile();
+		long length;
+		try {
+			length = channel.size();
+		} catch (IOException e) {
+			closeFile();
+			throw new CoreException(e);
+		}
+		if (length > Integer.MAX_VALUE) {
+			closeFile();
+			throw new CoreException("file too large " + file.getPath());
+		}
+
+		map(Math.max((int) length, MIN_CAPACITY));
+		if ((length < HEADER_SIZE) || (buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+			if (length >= HEADER_SIZE) {
+				closeFile();
+				throw new CoreException("invalid store " + file.getPath());
+			}
+			buffer.position(0);
+			buffer.put(createHeader());
+			length = 0;
+		}
+
+		index = new IdOffsetIndex(0);
+		garbageBytes = 0;
+		end = recover((int) length);
+		if (end < length) {
+			// drop the damaged tail, so that stale records beyond it can never be read
+			try {
+				channel.truncate(end);
+			} catch (IOException e) {
+				closeFile();
+				throw new CoreException(e);
+			}
+			map(Math.max(end, MIN_CAPACITY));
+		}
+	}
+
+
+	/**
+	 * Scans the log, adding valid records to the index.
+	 * @param length length of the file.
+	 * @return the end of the last valid record.
+	 */
+	private int recover(int length) {
+		int position = HEADER_SIZE;
+		byte[] header = new byte[12];
+		while (position + RECORD_HEADER_SIZE <= length) {
+			long id = buffer.getLong(position);
+			int payloadLength = buffer.getInt(position + 8);
+			int storedCrc = buffer.getInt(position + 12);
+			int recordLength = RECORD_HEADER_SIZE + Math.max(payloadLength, 0);
+			if ((payloadLength < REMOVED) || (recordLength > length - position)) {
+				break;
+			}
+
+			buffer.position(position);
+			buffer.get(header, 0, 12);
+			crc.reset();
+			crc.update(header, 0, 12);
+			if (payloadLength > 0) {
+				byte[] payload = getReadBuffer(payloadLength);
+				buffer.position(position + RECORD_HEADER_SIZE);
+				buffer.get(payload, 0, payloadLength);
+				crc.update(payload, 0, payloadLength);
+			}
+			if ((int) crc.getValue() != storedCrc) {
+				break;
+			}
+
+			int previous;
+			if (payloadLength == REMOVED) {
+				previous = index.remove(id);
+				garbageBytes += recordLength;
+			} else {
+				previous = index.put(id, position);
+			}
+			if (previous >= 0) {
+				garbageBytes += recordSize(previous);
+			}
+			position += recordLength;
+		}
+		return position;
+	}
+
+
+	/**
+	 * Encodes a record for an object into the writer.
+	 * @param o
+	 */
+	private void encodeRecord(T o) {
+		int start = writer.size();
+		writer.writeLong(o.getId());
+		writer.writeInt(0);
+		writer.writeInt(0);
+		codec.encode(o, writer);
+		byte[] bytes = writer.getBackingArray();
+		putInt(bytes, start + 8, writer.size() - start - RECORD_HEADER_SIZE);
+		crc.reset();
+		crc.update(bytes, start, 12);
+		crc.update(bytes, start + RECORD_HEADER_SIZE, writer.size() - start - RECORD_HEADER_SIZE);
+		putInt(bytes, start + 12, (int) crc.getValue());
+	}
+
+
+	/**
+	 * Encodes a removal record into the writer.
+	 * @param id
+	 */
+	private void encodeRemoval(long id) {
+		int start = writer.size();
+		writer.writeLong(id);
+		writer.writeInt(REMOVED);
+		byte[] bytes = writer.getBackingArray();
+		crc.reset();
+		crc.update(bytes, start, 12);
+		writer.writeInt((int) crc.getValue());
+	}
+
+
+	/**
+	 * Appends the records in the writer to the log and updates the index.
+	 * @param length
+	 * @throws CoreException
+	 */
+	private void append(int length) throws CoreException {
+		if (length == 0) {
+			return;
+		}
+		if ((long) end + length > Integer.MAX_VALUE) {
+			throw new CoreException("store full " + file.getPath());
+		}
+		if (end + length > buffer.capacity()) {
+			map((int) Math.min(Math.max((long) end + length, 2L * buffer.capacity()), Integer.MAX_VALUE));
+		}
+
+		byte[] bytes = writer.getBackingArray();
+		buffer.position(end);
+		buffer.put(bytes, 0, length);
+
+		int position = 0;
+		while (position < length) {
+			long id = buffer.getLong(end + position);
+			int payloadLength = buffer.getInt(end + position + 8);
+			int previous;
+			if (payloadLength == REMOVED) {
+				previous = index.remove(id);
+				garbageBytes += RECORD_HEADER_SIZE;
+				position += RECORD_HEADER_SIZE;
+			} else {
+				previous = index.put(id, end + position);
+				position += RECORD_HEADER_SIZE + payloadLength;
+			}
+			if (previous >= 0) {
+				garbageBytes += recordSize(previous);
+			}
+		}
+		end += length;
+	}
+
+
+	/**
+	 * Reads and decodes the record at an offset.
+	 * @param id
+	 * @param offset
+	 * @return
+	 * @throws CoreException
+	 */
+	private T read(long id, int offset) throws CoreException {
+		int length = buffer.getInt(offset + 8);
+		byte[] payload = getReadBuffer(length);
+		buffer.position(offset + RECORD_HEADER_SIZE);
+		buffer.get(payload, 0, length);
+		return codec.decode(id, payload, 0, length);
+	}
+
+
+	/**
+	 * Gets the size of the record at an offset.
+	 * @param offset
+	 * @return
+	 */
+	private int recordSize(int offset) {
+		return RECORD_HEADER_SIZE + Math.max(buffer.getInt(offset + 8), 0);
+	}
+
+
+	/**
+	 * Gets the reusable read buffer, growing it if necessary.
+	 * @param length
+	 * @return
+	 */
+	private byte[] getReadBuffer(int length) {
+		if (readBuffer.length < length) {
+			readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+		}
+		return readBuffer;
+	}
+
+
+	/**
+	 * Maps the file, extending it if necessary.
+	 * @param capacity
+	 * @throws CoreException
+	 */
+	private void map(int capacity) throws CoreException {
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			throw new CoreException(e);
+		}
+	}
+
+
+	/**
+	 * Opens the file and its channel.
+	 * @throws CoreException
+	 */
+	private void openFile() throws CoreException {
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			channel = randomAccessFile.getChannel();
+		} catch (IOException e) {
+			throw new CoreException(e);
+		}
+	}
+
+
+	/**
+	 * Closes the file and its channel, ignoring errors.
+	 */
+	private void closeFile() {
+		try {
+			if (randomAccessFile != null) {
+				randomAccessFile.close();
+			}
+		} catch (IOException e) {
+			// nothing sensible to do
+		}
+		randomAccessFile = null;
+		channel = null;
+		buffer = null;
+	}
+
+
+	/**
+	 * Ensures that the store has not been closed.
+	 * @throws CoreException
+	 */
+	private void checkOpen() throws CoreException {
+		if (channel == null) {
+			throw new CoreException("store closed " + file.getPath());
+		}
+	}
+
+
+	/**
+	 * Creates the file header.
+	 * @return
+	 */
+	private static byte[] createHeader() {
+		byte[] header = new byte[HEADER_SIZE];
+		putInt(header, 0, MAGIC);
+		putInt(header, 4, VERSION);
+		return header;
+	}
+
+
+	/**
+	 * Writes a big-endian int into a byte array.
+	 * @param bytes
+	 * @param offset
+	 * @param value
+	 */
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
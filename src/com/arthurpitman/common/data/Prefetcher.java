@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * Predicts the next set of ids requested from a provider.
+ * <p/>
+ * A prediction is made when requests move through the id space in a regular way: either the same
+ * stride was observed twice in a row, or a request starts directly after the previous one ended.
+ * The predicted set is the current set shifted by the stride.
+ */
+public class Prefetcher {
+
+	private boolean hasLast = false;
+	private long lastFirst;
+	private long lastLast;
+	private long lastStride = 0;
+	private long lastPredictedFirst;
+	private boolean hasPrediction = false;
+
+
+	/**
+	 * Observes a request and predicts the next one.
+	 * @param sortedIds the requested ids, sorted.
+	 * @return the predicted ids, or null if there is no prediction.
+	 */
+	public synchronized IdSet observe(IdSet sortedIds) {
+		int size = sortedIds.size();
+		if (size == 0) {
+			return null;
+		}
+
+		long first = sortedIds.get(0);
+		long last = sortedIds.get(size - 1);
+		IdSet prediction = null;
+
+		if (hasLast) {
+			long stride = first - lastFirst;
+			boolean regular = (stride != 0) && (stride == lastStride);
+			boolean adjacent = (first == lastLast + 1);
+			if ((regular || adjacent) && (stride != 0)) {
+				long predictedFirst = first + stride;
+				if (!hasPrediction || (predictedFirst != lastPredictedFirst)) {
+					prediction = new IdSet(size);
+					for (int i = 0; i < size; i++) {
+						prediction.add(sortedIds.get(i) + stride);
+					}
+					lastPredictedFirst = predictedFirst;
+					hasPrediction = true;
+				}
+			}
+			lastStride = stride;
+		}
+
+		lastFirst = first;
+		lastLast = last;
+		hasLast = true;
+		return prediction;
+	}
+
+
+	/**
+	 * Forgets all observed requests.
+	 */
+	public synchronized void reset() {
+		hasLast = false;
+		lastStride = 0;
+		hasPrediction = false;
+	}
+}
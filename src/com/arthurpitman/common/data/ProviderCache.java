@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.support.v4.util.LruCache;
+
+
+/**
+ * A least-recently-used cache of {@link IdObject IdObjects} used by providers.
+ * <p/>
+ * Optionally, evicted objects are kept in a second tier of weak or soft references, from which
+ * they are returned by {@link #lookup(long)} when requested again, unless the garbage collector
+ * has reclaimed them. Like new objects, they are only promoted back into the cache if the policy
+ * admits them. Other methods, including {@link #get(Object)}, never promote objects.
+ * @param <T>
+ */
+public class ProviderCache<T extends IdObject> extends LruCache<Long, T> {
+
+	public static final int SECOND_TIER_NONE = 0;
+	public static final int SECOND_TIER_WEAK = 1;
+	public static final int SECOND_TIER_SOFT = 2;
+
+
+	/**
+	 * Soft reference to an evicted object, remembering its key.
+	 */
+	private static class SoftEntry<T> extends SoftReference<T> {
+		final Long key;
+
+		SoftEntry(Long key, T value, ReferenceQueue<? super T> queue) {
+			super(value, queue);
+			this.key = key;
+		}
+	}
+
+
+	/**
+	 * Weak reference to an evicted object, remembering its key.
+	 */
+	private static class WeakEntry<T> extends WeakReference<T> {
+		final Long key;
+
+		WeakEntry(Long key, T value, ReferenceQueue<? super T> queue) {
+			super(value, queue);
+			this.key = key;
+		}
+	}
+
+
+	private final ProviderStats stats;
+	private final Weigher<? super T> weigher;
+	private volatile CachePolicy policy;
+	private volatile int secondTier = SECOND_TIER_NONE;
+	private final HashMap<Long, Reference<T>> secondTierEntries = new HashMap<Long, Reference<T>>();
+	private final ReferenceQueue<T> secondTierQueue = new ReferenceQueue<T>();
+
+
+	/**
+	 * Creates a new ProviderCache.
+	 * @param maxSize maximum number of objects.
+	 * @param stats statistics to which evictions are reported.
+	 */
+	public ProviderCache(int maxSize, ProviderStats stats) {
+		this(maxSize, null, stats);
+	}
+
+
+	/**
+	 * Creates a new ProviderCache bounded by the total weight of its objects.
+	 * @param maxSize maximum total weight, or maximum number of objects if {@code weigher} is null.
+	 * @param weigher weigher used to estimate object sizes, may be null.
+	 * @param stats statistics to which evictions are reported.
+	 */
+	public ProviderCache(int maxSize, Weigher<? super T> weigher, ProviderStats stats) {
+		super(maxSize);
+		this.weigher = weigher;
+		this.stats = stats;
+	}
+
+
+	/**
+	 * Sets the admission policy.
+	 * @param policy the policy, or null to admit all objects.
+	 */
+	public void setPolicy(CachePolicy policy) {
+		this.policy = policy;
+	}
+
+
+	/**
+	 * Gets the admission policy.
+	 * @return the policy, or null if all objects are admitted.
+	 */
+	public CachePolicy getPolicy() {
+		return policy;
+	}
+
+
+	/**
+	 * Sets the type of the second tier.
+	 * <p/>
+	 * Weak references are reclaimed as soon as evicted objects are no longer used elsewhere,
+	 * soft references are kept until memory runs low.
+	 * @param secondTier {@code SECOND_TIER_NONE}, {@code SECOND_TIER_WEAK} or {@code SECOND_TIER_SOFT}.
+	 */
+	public void setSecondTier(int secondTier) {
+		this.secondTier = secondTier;
+		if (secondTier == SECOND_TIER_NONE) {
+			synchronized (secondTierEntries) {
+				secondTierEntries.clear();
+				while (secondTierQueue.poll() != null) {
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the type of the second tier.
+	 * @return
+	 */
+	public int getSecondTier() {
+		return secondTier;
+	}
+
+
+	/**
+	 * Looks up an object on behalf of a request, recording the access with the policy.
+	 * @param id
+	 * @return the object or null if it is not cached.
+	 */
+	public T lookup(long id) {
+		CachePolicy p = policy;
+		if (p != null) {
+			p.recordAccess(id);
+		}
+		T o = get(id);
+		if ((o != null) || (secondTier == SECOND_TIER_NONE)) {
+			return o;
+		}
+
+		o = getFromSecondTier(id);
+		if (o != null) {
+			stats.recordSecondTierHit();
+			if ((p == null) || (size() + sizeOf(id, o) <= maxSize()) || p.admit(id)) {
+				removeFromSecondTier(id);
+				put(id, o);
+			}
+		}
+		return o;
+	}
+
+
+	/**
+	 * Adds or replaces an object if the policy admits it.
+	 * <p/>
+	 * A rejected object also removes any previous version from the cache and the second tier, so that it
+	 * is not served stale. Rejected objects are not kept in the second tier, which only holds objects the
+	 * policy admitted before.
+	 * @param o
+	 * @return true if the object was added.
+	 */
+	public boolean offer(T o) {
+		long id = o.getId();
+		removeFromSecondTier(id);
+		CachePolicy p = policy;
+		if ((p == null) || (size() + sizeOf(id, o) <= maxSize()) || p.admit(id)) {
+			put(id, o);
+			return true;
+		}
+		remove(id);
+		return false;
+	}
+
+
+	/**
+	 * Removes an object from the cache, including the second tier.
+	 * @param id
+	 */
+	public void discard(long id) {
+		remove(id);
+		removeFromSecondTier(id);
+	}
+
+
+	/**
+	 * Replaces the cached copy of an object.
+	 * <p/>
+	 * If the object is not cached, only a copy held by the second tier is replaced.
+	 * @param o
+	 */
+	public void replace(T o) {
+		Long id = o.getId();
+		if (get(id) != null) {
+			put(id, o);
+		} else {
+			replaceInSecondTier(id, o);
+		}
+	}
+
+
+	/**
+	 * Replaces the cached copies of a set of objects.
+	 * <p/>
+	 * Objects that are not cached are ignored, apart from replacing copies held by the second tier.
+	 * Which objects are cached is determined from a single {@link #snapshot()}, so checking does not
+	 * change the order of eviction or promote objects from the second tier; each replaced object
+	 * becomes the most recently used, as with {@link #put(Object, Object)}.
+	 * @param objects
+	 */
+	public void replace(List<T> objects) {
+		Map<Long, T> entries = snapshot();
+		for (T o : objects) {
+			Long id = o.getId();
+			if (entries.containsKey(id)) {
+				put(id, o);
+			} else {
+				replaceInSecondTier(id, o);
+			}
+		}
+	}
+
+
+	/**
+	 * Marks the cached copy of an object stale, including a copy held by the second tier.
+	 * @param id
+	 */
+	public void markStale(long id) {
+		T o = get(id);
+		if (o != null) {
+			o.setStale(true);
+		}
+		o = getFromSecondTier(id);
+		if (o != null) {
+			o.setStale(true);
+		}
+	}
+
+
+	/**
+	 * Marks the cached copies of a set of objects stale, including copies held by the second tier.
+	 * <p/>
+	 * Which objects are cached is determined from a single {@link #snapshot()}, so marking does not change
+	 * the order of eviction.
+	 * @param ids
+	 */
+	public void markStale(IdSet ids) {
+		Map<Long, T> entries = snapshot();
+		boolean checkSecondTier = secondTier != SECOND_TIER_NONE;
+		int size = ids.size();
+		for (int i = 0; i < size; i++) {
+			long id = ids.get(i);
+			T o = entries.get(id);
+			if ((o == null) && checkSecondTier) {
+				o = getFromSecondTier(id);
+			}
+			if (o != null) {
+				o.setStale(true);
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the ids of a set that are cached, without changing the order of eviction.
+	 * <p/>
+	 * Objects held only by the second tier are not included.
+	 * @param ids
+	 * @return the cached ids, in the order of {@code ids}.
+	 */
+	public IdSet getCachedIds(IdSet ids) {
+		Map<Long, T> entries = snapshot();
+		int size = ids.size();
+		IdSet cachedIds = new IdSet(Math.min(size, entries.size()));
+		for (int i = 0; i < size; i++) {
+			long id = ids.get(i);
+			if (entries.containsKey(id)) {
+				cachedIds.add(id);
+			}
+		}
+		return cachedIds;
+	}
+
+
+	/**
+	 * Gets the ids of all cached objects, from least to most recently used.
+	 * @return
+	 */
+	public long[] hotIds() {
+		Map<Long, T> entries = snapshot();
+		long[] ids = new long[entries.size()];
+		int i = 0;
+		for (Long id : entries.keySet()) {
+			ids[i++] = id;
+		}
+		return ids;
+	}
+
+
+	@Override
+	protected int sizeOf(Long key, T value) {
+		return (weigher == null) ? 1 : weigher.weigh(value);
+	}
+
+
+	@Override
+	protected void entryRemoved(boolean evicted, Long key, T oldValue, T newValue) {
+		if (evicted) {
+			stats.recordEviction();
+			addToSecondTier(key, oldValue);
+		}
+	}
+
+
+	/**
+	 * Adds an object to the second tier, if enabled.
+	 * @param key
+	 * @param value
+	 */
+	private void addToSecondTier(Long key, T value) {
+		int type = secondTier;
+		if (type == SECOND_TIER_NONE) {
+			return;
+		}
+
+		Reference<T> reference;
+		if (type == SECOND_TIER_SOFT) {
+			reference = new SoftEntry<T>(key, value, secondTierQueue);
+		} else {
+			reference = new WeakEntry<T>(key, value, secondTierQueue);
+		}
+
+		synchronized (secondTierEntries) {
+			purgeSecondTier();
+			secondTierEntries.put(key, reference);
+		}
+	}
+
+
+	/**
+	 * Replaces an object held by the second tier, if present.
+	 * @param key
+	 * @param value
+	 */
+	private void replaceInSecondTier(Long key, T value) {
+		synchronized (secondTierEntries) {
+			if (secondTierEntries.containsKey(key)) {
+				secondTierEntries.remove(key);
+				addToSecondTier(key, value);
+			}
+		}
+	}
+
+
+	/**
+	 * Gets an object from the second tier, leaving it there.
+	 * @param key
+	 * @return the object, or null if it is not present or has been reclaimed.
+	 */
+	private T getFromSecondTier(Long key) {
+		synchronized (secondTierEntries) {
+			purgeSecondTier();
+			Reference<T> reference = secondTierEntries.get(key);
+			return (reference == null) ? null : reference.get();
+		}
+	}
+
+
+	/**
+	 * Removes an object from the second tier.
+	 * @param key
+	 * @return the object, or null if it was not present or has been reclaimed.
+	 */
+	private T removeFromSecondTier(Long key) {
+		synchronized (secondTierEntries) {
+			purgeSecondTier();
+			Reference<T> reference = secondTierEntries.remove(key);
+			return (reference == null) ? null : reference.get();
+		}
+	}
+
+
+	/**
+	 * Removes entries of reclaimed objects from the second tier.
+	 * <p/>
+	 * Must be called while holding the lock on {@code secondTierEntries}.
+	 */
+	private void purgeSecondTier() {
+		Reference<? extends T> reference;
+		while ((reference = secondTierQueue.poll()) != null) {
+			Long key = (reference instanceof SoftEntry) ? ((SoftEntry<?>) reference).key : ((WeakEntry<?>) reference).key;
+			if (secondTierEntries.get(key) == reference) {
+				secondTierEntries.remove(key);
+			}
+		}
+	}
+}
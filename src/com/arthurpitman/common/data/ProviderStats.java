@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters and timings for a provider and its cache.
+ */
+public class ProviderStats {
+
+	/**
+	 * An immutable snapshot of {@link ProviderStats}.
+	 */
+	public static class Snapshot {
+
+		/** Number of objects found in the memory cache. */
+		public final long memoryHits;
+
+		/** Number of objects promoted from the second tier of the memory cache, included in {@code memoryHits}. */
+		public final long secondTierHits;
+
+		/** Number of objects found in local storage. */
+		public final long localHits;
+
+		/** Number of objects not found in local storage. */
+		public final long localMisses;
+
+		/** Number of missing objects retrieved from remote storage. */
+		public final long remoteFetches;
+
+		/** Number of stale objects retrieved again from remote storage. */
+		public final long staleRefetches;
+
+		/** Number of objects evicted from the memory cache. */
+		public final long evictions;
+
+		/** Number of calls to {@code getLocal} and their total duration in nanoseconds. */
+		public final long getLocalCount;
+		public final long getLocalTime;
+
+		/** Number of calls to {@code getLocalBulk} and their total duration in nanoseconds. */
+		public final long getLocalBulkCount;
+		public final long getLocalBulkTime;
+
+		/** Number of calls to {@code getRemote} and their total duration in nanoseconds. */
+		public final long getRemoteCount;
+		public final long getRemoteTime;
+
+		/** Number of calls to {@code getRemoteBulk} and their total duration in nanoseconds. */
+		public final long getRemoteBulkCount;
+		public final long getRemoteBulkTime;
+
+
+		private Snapshot(ProviderStats stats) {
+			memoryHits = stats.memoryHits.get();
+			secondTierHits = stats.secondTierHits.get();
+			localHits = stats.localHits.get();
+			localMisses = stats.localMisses.get();
+			remoteFetches = stats.remoteFetches.get();
+			staleRefetches = stats.staleRefetches.get();
+			evictions = stats.evictions.get();
+			getLocalCount = stats.getLocalCount.get();
+			getLocalTime = stats.getLocalTime.get();
+			getLocalBulkCount = stats.getLocalBulkCount.get();
+			getLocalBulkTime = stats.getLocalBulkTime.get();
+			getRemoteCount = stats.getRemoteCount.get();
+			getRemoteTime = stats.getRemoteTime.get();
+			getRemoteBulkCount = stats.getRemoteBulkCount.get();
+			getRemoteBulkTime = stats.getRemoteBulkTime.get();
+		}
+
+
+		/**
+		 * Gets the fraction of requested objects found in the memory cache.
+		 * @return ratio between 0 and 1, or 0 if there were no requests.
+		 */
+		public double getMemoryHitRatio() {
+			long requests = memoryHits + localHits + localMisses;
+			return (requests == 0) ? 0 : (double) memoryHits / requests;
+		}
+
+
+		/**
+		 * Gets the fraction of requested objects found in the memory cache or in local storage.
+		 * @return ratio between 0 and 1, or 0 if there were no requests.
+		 */
+		public double getLocalHitRatio() {
+			long requests = memoryHits + localHits + localMisses;
+			return (requests == 0) ? 0 : (double) (memoryHits + localHits) / requests;
+		}
+
+
+		@Override
+		public String toString() {
+			return "memoryHits=" + memoryHits + " secondTierHits=" + secondTierHits
+					+ " localHits=" + localHits + " localMisses=" + localMisses
+					+ " remoteFetches=" + remoteFetches + " staleRefetches=" + staleRefetches
+					+ " evictions=" + evictions
+					+ " getLocal=" + getLocalCount + "/" + getLocalTime + "ns"
+					+ " getLocalBulk=" + getLocalBulkCount + "/" + getLocalBulkTime + "ns"
+					+ " getRemote=" + getRemoteCount + "/" + getRemoteTime + "ns"
+					+ " getRemoteBulk=" + getRemoteBulkCount + "/" + getRemoteBulkTime + "ns";
+		}
+	}
+
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong secondTierHits = new AtomicLong();
+	private final AtomicLong localHits = new AtomicLong();
+	private final AtomicLong localMisses = new AtomicLong();
+	private final AtomicLong remoteFetches = new AtomicLong();
+	private final AtomicLong staleRefetches = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong getLocalCount = new AtomicLong();
+	private final AtomicLong getLocalTime = new AtomicLong();
+	private final AtomicLong getLocalBulkCount = new AtomicLong();
+	private final AtomicLong getLocalBulkTime = new AtomicLong();
+	private final AtomicLong getRemoteCount = new AtomicLong();
+	private final AtomicLong getRemoteTime = new AtomicLong();
+	private final AtomicLong getRemoteBulkCount = new AtomicLong();
+	private final AtomicLong getRemoteBulkTime = new AtomicLong();
+
+
+	/**
+	 * Records an object found in the memory cache.
+	 */
+	public void recordMemoryHit() {
+		memoryHits.incrementAndGet();
+	}
+
+
+	/**
+	 * Records an object promoted from the second tier of the memory cache.
+	 */
+	public void recordSecondTierHit() {
+		secondTierHits.incrementAndGet();
+	}
+
+
+	/**
+	 * Records a call to {@code getLocal}.
+	 * @param found true if the object was found.
+	 * @param time duration in nanoseconds.
+	 */
+	public void recordGetLocal(boolean found, long time) {
+		if (found) {
+			localHits.incrementAndGet();
+		} else {
+			localMisses.incrementAndGet();
+		}
+		getLocalCount.incrementAndGet();
+		getLocalTime.addAndGet(time);
+	}
+
+
+	/**
+	 * Records a call to {@code getLocalBulk}.
+	 * @param requested number of requested objects.
+	 * @param found number of objects found.
+	 * @param time duration in nanoseconds.
+	 */
+	public void recordGetLocalBulk(int requested, int found, long time) {
+		localHits.addAndGet(found);
+		localMisses.addAndGet(requested - found);
+		getLocalBulkCount.incrementAndGet();
+		getLocalBulkTime.addAndGet(time);
+	}
+
+
+	/**
+	 * Records a call to {@code getRemote}.
+	 * @param time duration in nanoseconds.
+	 */
+	public void recordGetRemote(long time) {
+		getRemoteCount.incrementAndGet();
+		getRemoteTime.addAndGet(time);
+	}
+
+
+	/**
+	 * Records a call to {@code getRemoteBulk}.
+	 * @param time duration in nanoseconds.
+	 */
+	public void recordGetRemoteBulk(long time) {
+		getRemoteBulkCount.incrementAndGet();
+		getRemoteBulkTime.addAndGet(time);
+	}
+
+
+	/**
+	 * Records objects retrieved from remote storage.
+	 * @param count number of objects.
+	 * @param stale true if the objects were stale, false if they were missing.
+	 */
+	public void recordRemoteFetches(int count, boolean stale) {
+		if (stale) {
+			staleRefetches.addAndGet(count);
+		} else {
+			remoteFetches.addAndGet(count);
+		}
+	}
+
+
+	/**
+	 * Records an object evicted from the memory cache.
+	 */
+	public void recordEviction() {
+		evictions.incrementAndGet();
+	}
+
+
+	/**
+	 * Resets all counters and timings.
+	 */
+	public void reset() {
+		memoryHits.set(0);
+		secondTierHits.set(0);
+		localHits.set(0);
+		localMisses.set(0);
+		remoteFetches.set(0);
+		staleRefetches.set(0);
+		evictions.set(0);
+		getLocalCount.set(0);
+		getLocalTime.set(0);
+		getLocalBulkCount.set(0);
+		getLocalBulkTime.set(0);
+		getRemoteCount.set(0);
+		getRemoteTime.set(0);
+		getRemoteBulkCount.set(0);
+		getRemoteBulkTime.set(0);
+	}
+
+
+	/**
+	 * Takes a snapshot of the current counters and timings.
+	 * @return
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+}
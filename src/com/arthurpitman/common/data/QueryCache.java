@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import android.support.v4.util.LruCache;
+
+
+/**
+ * A least-recently-used cache of query results, mapping query descriptors to {@link IdSet IdSets}.
+ * <p/>
+ * Query descriptors can be any objects with suitable {@code equals} and {@code hashCode} methods,
+ * such as strings like "folder:12/date". Attach the cache to providers with
+ * {@code setQueryCache} so that results containing refreshed objects are invalidated.
+ * Queries whose results may gain new objects must be invalidated explicitly.
+ * <p/>
+ * Results are stored as sorted arrays of ids, so invalidating ids takes a binary search per cached query
+ * and no memory beyond the arrays themselves.
+ */
+public class QueryCache {
+
+	/**
+	 * A least-recently-used cache of id arrays, sized by the total number of ids.
+	 */
+	private static class IdArrayLruCache extends LruCache<Object, long[]> {
+
+		public IdArrayLruCache(int maxIds) {
+			super(maxIds);
+		}
+
+		@Override
+		protected int sizeOf(Object key, long[] value) {
+			return value.length + 1;
+		}
+	}
+
+
+	private final IdArrayLruCache cache;
+
+
+	/**
+	 * Creates a new QueryCache.
+	 * @param maxIds maximum total number of ids held by the cache.
+	 */
+	public QueryCache(int maxIds) {
+		cache = new IdArrayLruCache(maxIds);
+	}
+
+
+	/**
+	 * Gets the result of a query.
+	 * @param query
+	 * @return the ids as a sorted, read-only IdSet, or null if the query is not cached.
+	 */
+	public IdSet get(Object query) {
+		long[] ids = cache.get(query);
+		return (ids == null) ? null : IdSet.wrapSortedReadOnly(ids);
+	}
+
+
+	/**
+	 * Puts the result of a query.
+	 * <p/>
+	 * The ids are stored sorted and without duplicates, the order in which providers return objects.
+	 * @param query
+	 * @param ids
+	 */
+	public synchronized void put(Object query, IdSet ids) {
+		cache.put(query, ids.toSorted().toArray());
+	}
+
+
+	/**
+	 * Invalidates a query.
+	 * @param query
+	 */
+	public synchronized void invalidate(Object query) {
+		cache.remove(query);
+	}
+
+
+	/**
+	 * Invalidates all queries whose results contain an id.
+	 * @param id
+	 */
+	public void invalidate(long id) {
+		IdSet ids = new IdSet(1);
+		ids.add(id);
+		invalidateSorted(ids);
+	}
+
+
+	/**
+	 * Invalidates all queries whose results contain any of a set of ids.
+	 * @param ids
+	 */
+	public void invalidate(IdSet ids) {
+		if (!ids.isEmpty()) {
+			invalidateSorted(ids.toSorted());
+		}
+	}
+
+
+	/**
+	 * Invalidates all queries.
+	 */
+	public synchronized void invalidateAll() {
+		cache.evictAll();
+	}
+
+
+	/**
+	 * Invalidates all queries whose results contain any of a sorted set of ids.
+	 * @param sortedIds
+	 */
+	private synchronized void invalidateSorted(IdSet sortedIds) {
+		for (Map.Entry<Object, long[]> entry : cache.snapshot().entrySet()) {
+			if (containsAny(entry.getValue(), sortedIds)) {
+				cache.remove(entry.getKey());
+			}
+		}
+	}
+
+
+	/**
+	 * Determines if a sorted array contains any of a sorted set of ids.
+	 * <p/>
+	 * Each id is looked up with a binary search over the part of the array above the previous id.
+	 * @param array
+	 * @param sortedIds
+	 * @return
+	 */
+	private static boolean containsAny(long[] array, IdSet sortedIds) {
+		int from = 0;
+		int n = sortedIds.size();
+		for (int i = 0; (i < n) && (from < array.length); i++) {
+			int index = Arrays.binarySearch(array, from, array.length, sortedIds.get(i));
+			if (index >= 0) {
+				return true;
+			}
+			from = -index - 1;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.io.File;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.arthurpitman.common.CoreException;
+import com.arthurpitman.common.Log;
+
+
+/**
+ * A durable queue of ids whose objects are stale and should be refreshed in the background.
+ * <p/>
+ * The pending ids are kept in memory, so adding and removing ids is cheap. Changes are written to a
+ * file in batches on the executor, and after every drain, so they survive restarts; ids added shortly
+ * before a crash may be lost, but their objects remain marked stale in local storage. Draining hands
+ * all pending ids to a {@link Drainer} at once. If draining fails, it is retried after a delay that
+ * doubles after every failure, up to a maximum.
+ */
+public class RefreshQueue {
+
+	/**
+	 * Refreshes the objects of pending ids.
+	 */
+	public interface Drainer {
+		void drain(IdSet ids) throws CoreException;
+	}
+
+
+	private static final String TAG = "RefreshQueue";
+
+	/** Delay in milliseconds before changes are written, so that bursts are written together. */
+	private static final long WRITE_DELAY = 1000;
+
+	private final File file;
+	private final ScheduledExecutorService executor;
+	private final long retryDelay;
+	private final long maxRetryDelay;
+	private final Object drainLock = new Object();
+	private final Object writeLock = new Object();
+
+	private final IdOffsetIndex pending;
+	private IdSet addedWhileDraining;
+	private volatile Drainer drainer;
+	private long currentDelay = 0;
+	private boolean drainScheduled = false;
+	private boolean dirty = false;
+	private boolean writeScheduled = false;
+
+
+	/**
+	 * Creates a new RefreshQueue, restoring pending ids from a file.
+	 * <p/>
+	 * If the file is unreadable, the queue starts empty; the affected objects remain marked stale
+	 * in local storage and are refreshed when next requested.
+	 * @param file file used to store the pending ids.
+	 * @param executor executor used to drain and write in the background, or null to drain only on demand.
+	 * Without an executor, changes are written by {@link #drain()} and {@link #flush()}.
+	 * @param retryDelay delay in milliseconds before draining is first retried after a failure.
+	 * @param maxRetryDelay maximum delay in milliseconds between retries.
+	 */
+	public RefreshQueue(File file, ScheduledExecutorService executor, long retryDelay, long maxRetryDelay) {
+		this.file = file;
+		this.executor = executor;
+		this.retryDelay = retryDelay;
+		this.maxRetryDelay = Math.max(maxRetryDelay, retryDelay);
+
+		IdSet restored = null;
+		try {
+			byte[] bytes = IdSnapshot.readFile(file);
+			if (bytes != null) {
+				restored = CompressedIdSet.fromByteArray(bytes).toIdSet();
+			}
+		} catch (CoreException e) {
+			Log.e(TAG, "exception while restoring pending ids: " + e.toString());
+		}
+		int size = (restored != null) ? restored.size() : 0;
+		pending = new IdOffsetIndex(size);
+		for (int i = 0; i < size; i++) {
+			pending.put(restored.get(i), 1);
+		}
+	}
+
+
+	/**
+	 * Sets the drainer and schedules draining if ids are pending.
+	 * @param drainer the drainer, or null to stop draining.
+	 */
+	public void setDrainer(Drainer drainer) {
+		this.drainer = drainer;
+		if ((drainer != null) && !isEmpty()) {
+			schedule(0);
+		}
+	}
+
+
+	/**
+	 * Adds ids and schedules draining.
+	 * @param ids
+	 */
+	public void add(IdSet ids) {
+		if (ids.isEmpty()) {
+			return;
+		}
+		synchronized (this) {
+			int size = ids.size();
+			for (int i = 0; i < size; i++) {
+				long id = ids.get(i);
+				pending.put(id, 1);
+				if (addedWhileDraining != null) {
+					addedWhileDraining.add(id);
+				}
+			}
+			dirty = true;
+		}
+		scheduleWrite();
+		schedule(0);
+	}
+
+
+	/**
+	 * Adds a single id and schedules draining.
+	 * @param id
+	 */
+	public void add(long id) {
+		IdSet ids = new IdSet(1);
+		ids.add(id);
+		add(ids);
+	}
+
+
+	/**
+	 * Removes ids, for example because their objects have been refreshed elsewhere.
+	 * @param ids
+	 */
+	public void remove(IdSet ids) {
+		boolean changed = false;
+		synchronized (this) {
+			if (pending.size() == 0) {
+				return;
+			}
+			int size = ids.size();
+			for (int i = 0; i < size; i++) {
+				if (pending.remove(ids.get(i)) >= 0) {
+					changed = true;
+				}
+			}
+			if (changed) {
+				dirty = true;
+			}
+		}
+		if (changed) {
+			scheduleWrite();
+		}
+	}
+
+
+	/**
+	 * Removes a single id.
+	 * @param id
+	 */
+	public void remove(long id) {
+		IdSet ids = new IdSet(1);
+		ids.add(id);
+		remove(ids);
+	}
+
+
+	/**
+	 * Gets the pending ids.
+	 * @return a sorted IdSet.
+	 */
+	public synchronized IdSet getPending() {
+		IdSet ids = new IdSet(pending.size());
+		int capacity = pending.capacity();
+		for (int i = 0; i < capacity; i++) {
+			if (pending.offsetAt(i) != 0) {
+				ids.add(pending.keyAt(i));
+			}
+		}
+		ids.sort();
+		return ids;
+	}
+
+
+	/**
+	 * Gets the number of pending ids.
+	 * @return
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+
+	/**
+	 * Determines if no ids are pending.
+	 * @return
+	 */
+	public synchronized boolean isEmpty() {
+		return pending.size() == 0;
+	}
+
+
+	/**
+	 * Writes changes to the pending ids to the file now, for example before the application is stopped.
+	 * @throws CoreException if the pending ids cannot be written.
+	 */
+	public void flush() throws CoreException {
+		synchronized (writeLock) {
+			byte[] bytes;
+			synchronized (this) {
+				if (!dirty) {
+					return;
+				}
+				dirty = false;
+				bytes = CompressedIdSet.fromIdSet(getPending()).toByteArray();
+			}
+			try {
+				IdSnapshot.writeFile(file, bytes);
+			} catch (CoreException e) {
+				synchronized (this) {
+					dirty = true;
+				}
+				throw e;
+			}
+		}
+	}
+
+
+	/**
+	 * Drains all pending ids on the calling thread, for example when connectivity is restored.
+	 * <p/>
+	 * On success the drained ids are removed and the retry delay is reset. On failure the ids remain
+	 * pending and another attempt is scheduled after the retry delay. Changes are written afterwards.
+	 * @return true if the queue was drained or empty, false if draining failed or there is no drainer.
+	 */
+	public boolean drain() {
+		synchronized (drainLock) {
+			Drainer currentDrainer;
+			IdSet ids;
+			synchronized (this) {
+				drainScheduled = false;
+				currentDrainer = drainer;
+				if (currentDrainer == null) {
+					return false;
+				}
+				if (pending.size() == 0) {
+					return true;
+				}
+				ids = getPending();
+				addedWhileDraining = new IdSet();
+			}
+
+			boolean success = false;
+			try {
+				currentDrainer.drain(ids);
+				success = true;
+				synchronized (this) {
+					// ids deferred again while draining must stay pending
+					IdSet drainedIds = IdSet.difference(ids, addedWhileDraining);
+					addedWhileDraining = null;
+					currentDelay = 0;
+					remove(drainedIds);
+				}
+			} catch (CoreException e) {
+				Log.e(TAG, "exception while draining: " + e.toString());
+			} finally {
+				long delay = -1;
+				synchronized (this) {
+					addedWhileDraining = null;
+					if (!success) {
+						currentDelay = (currentDelay == 0) ? retryDelay : Math.min(currentDelay * 2, maxRetryDelay);
+						delay = currentDelay;
+					}
+				}
+				write();
+				if (delay >= 0) {
+					schedule(delay);
+				}
+			}
+			return success;
+		}
+	}
+
+
+	/**
+	 * Schedules draining on the executor, unless it is already scheduled.
+	 * @param minDelay minimum delay in milliseconds.
+	 */
+	private void schedule(long minDelay) {
+		if ((executor == null) || (drainer == null)) {
+			return;
+		}
+		long delay;
+		synchronized (this) {
+			if (drainScheduled) {
+				return;
+			}
+			drainScheduled = true;
+			delay = Math.max(minDelay, currentDelay);
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// allow draining to be scheduled again once the executor accepts tasks
+			synchronized (this) {
+				drainScheduled = false;
+			}
+			Log.e(TAG, "drain rejected: " + e.toString());
+		}
+	}
+
+
+	/**
+	 * Schedules writing changes on the executor, unless it is already scheduled.
+	 */
+	private void scheduleWrite() {
+		if (executor == null) {
+			return;
+		}
+		synchronized (this) {
+			if (writeScheduled) {
+				return;
+			}
+			writeScheduled = true;
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (RefreshQueue.this) {
+						writeScheduled = false;
+					}
+					write();
+				}
+			}, WRITE_DELAY, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// changes stay dirty and are written with the next scheduled write, drain or flush
+			synchronized (this) {
+				writeScheduled = false;
+			}
+			Log.e(TAG, "write rejected: " + e.toString());
+		}
+	}
+
+
+	/**
+	 * Writes changes to the pending ids, logging failures. Failed changes are written with the next change.
+	 */
+	private void write() {
+		try {
+			flush();
+		} catch (CoreException e) {
+			Log.e(TAG, "exception while writing pending ids: " + e.toString());
+		}
+	}
+}
@@ -16,11 +16,16 @@
 
 package com.arthurpitman.common.data;
 
-import java.util.Arrays;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.arthurpitman.common.CoreException;
-import android.support.v4.util.LruCache;
+import com.arthurpitman.common.Log;
 
 
 /**
@@ -28,11 +33,63 @@ import android.support.v4.util.LruCache;
  * @param <T>
  */
 public abstract class RemoteProvider <T extends IdObject> {
+	private static final String TAG = "RemoteProvider";
 
 	public static final int SCOPE_ALL = 1;
 	public static final int SCOPE_LOCAL = 2;
 
-	protected LruCache<Long, T> cache;
+	/**
+	 * Changes reported by remote storage since a sync cursor.
+	 */
+	public static class Changes {
+
+		/** Ids of objects that have been created or modified. */
+		public final IdSet changedIds;
+
+		/** Ids of objects that have been removed, may be null. */
+		public final IdSet removedIds;
+
+		/** Cursor to pass to the next sync. */
+		public final long cursor;
+
+
+		/**
+		 * Creates a new Changes.
+		 * @param changedIds
+		 * @param removedIds
+		 * @param cursor
+		 */
+		public Changes(IdSet changedIds, IdSet removedIds, long cursor) {
+			this.changedIds = changedIds;
+			this.removedIds = removedIds;
+			this.cursor = cursor;
+		}
+	}
+
+	/**
+	 * Callback interface for asynchronous requests.
+	 * @param <T>
+	 */
+	public interface Callback<T extends IdObject> {
+		void onResult(ResultSet<T> result);
+		void onError(CoreException e);
+	}
+
+	private final ProviderStats stats = new ProviderStats();
+	protected ProviderCache<T> cache;
+	private volatile long timeToLive = 0;
+	private volatile Executor revalidateExecutor;
+	private volatile Callback<T> revalidateCallback;
+	private final HashSet<Long> revalidatingIds = new HashSet<Long>();
+	private volatile WriteBehindBuffer<T> writeBehindBuffer;
+	private volatile Executor prefetchExecutor;
+	private final Prefetcher prefetcher = new Prefetcher();
+	private volatile long syncCursor = 0;
+	private volatile IdBloomFilter existenceFilter;
+	private volatile boolean existenceFilterReady = false;
+	private volatile QueryCache queryCache;
+	private volatile BatchSizeController batchSizeController;
+	private volatile RefreshQueue refreshQueue;
 
 
 	/**
@@ -40,7 +97,17 @@ public abstract class RemoteProvider <T extends IdObject> {
 	 * @param cacheSize
 	 */
 	public RemoteProvider(int cacheSize) {
-		cache = new LruCache<Long, T>(cacheSize);
+		cache = new ProviderCache<T>(cacheSize, stats);
+	}
+
+
+	/**
+	 * Creates a new RemoteProvider with a cache bounded by the estimated size of its objects.
+	 * @param maxCacheBytes maximum total size of cached objects in bytes.
+	 * @param weigher weigher used to estimate object sizes.
+	 */
+	public RemoteProvider(int maxCacheBytes, Weigher<? super T> weigher) {
+		cache = new ProviderCache<T>(maxCacheBytes, weigher, stats);
 	}
 
 
@@ -52,26 +119,41 @@ public abstract class RemoteProvider <T extends IdObject> {
 	 * @throws CoreException
 	 */
 	public T get(long id, int scope) throws CoreException {
-		T o = cache.get(id);
+		T o = cache.lookup(id);
 		if (o == null) {
-			o = getLocal(id);
+			o = loadLocal(id);
 			if ((o == null) && (scope == SCOPE_ALL)) {
-				o = getRemote(id);
+				o = fetchRemote(id);
 				if (o != null) {
-					updateLocal(o);
+					stats.recordRemoteFetches(1, false);
+					storeLocal(o);
 				}
 			}
 			if (o != null) {
-				cache.put(id, o);
+				cache.offer(o);
 			}
+		} else {
+			stats.recordMemoryHit();
 		}
 
-		if ((o != null) && o.isStale() && (scope == SCOPE_ALL)) {
-			T or = getRemote(id);
-			if (or != null) {
-				updateLocal(or);
-				cache.put(id, or);
-				o = or;
+		if ((o != null) && (scope == SCOPE_ALL) && isExpired(o, System.currentTimeMillis())) {
+			Executor executor = revalidateExecutor;
+			if (executor != null) {
+				IdSet staleIds = new IdSet(1);
+				staleIds.add(id);
+				revalidate(executor, staleIds);
+			} else {
+				T or = fetchRemote(id);
+				if (or != null) {
+					stats.recordRemoteFetches(1, true);
+					storeLocal(or);
+					cache.offer(or);
+					o = or;
+					RefreshQueue queue = refreshQueue;
+					if (queue != null) {
+						queue.remove(id);
+					}
+				}
 			}
 		}
 
@@ -87,35 +169,213 @@ public abstract class RemoteProvider <T extends IdObject> {
 	 * @throws CoreException
 	 */
 	public ResultSet<T> get(IdSet ids, int scope) throws CoreException {
-		long[] sortedIds = ids.toArray();
-		Arrays.sort(sortedIds);
-		ResultSet<T> result = new ResultSet<T>(sortedIds.length);
+		IdSet sortedIds = ids.toSorted();
+		ResultSet<T> result = new ResultSet<T>(sortedIds.size());
+		IdSet missingIds = getAvailable(sortedIds, scope, result, true);
+		if (scope == SCOPE_ALL) {
+			pullRemoteAll(missingIds, result);
+		}
+		prefetch(sortedIds, scope);
+		return result;
+	}
+
+
+	/**
+	 * Gets a set of objects specified by an {@link IdSet} asynchronously.
+	 * <p/>
+	 * Objects available in the cache or in local storage are returned immediately.
+	 * If {@code scope} is {@code SCOPE_ALL}, missing and stale objects are then retrieved on the
+	 * specified {@link Executor} and the complete result is delivered to the callback on that executor's thread.
+	 * If the executor rejects the task, the error is delivered to the callback on the calling thread.
+	 * @param ids
+	 * @param scope
+	 * @param executor
+	 * @param callback
+	 * @return the objects currently available locally.
+	 * @throws CoreException
+	 */
+	public ResultSet<T> get(IdSet ids, int scope, Executor executor, final Callback<T> callback)
+			throws CoreException {
+		IdSet sortedIds = ids.toSorted();
+		ResultSet<T> result = new ResultSet<T>(sortedIds.size());
+		final IdSet missingIds = getAvailable(sortedIds, scope, result, true);
+		prefetch(sortedIds, scope);
+
+		if (scope == SCOPE_ALL) {
+			// the returned result belongs to the caller, so complete a copy in the background
+			final ResultSet<T> remoteResult = new ResultSet<T>(ids.size());
+			int size = result.size();
+			for (int i = 0; i < size; i++) {
+				remoteResult.append(result.valueAt(i));
+			}
+
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							pullRemoteAll(missingIds, remoteResult);
+						} catch (CoreException e) {
+							callback.onError(e);
+							return;
+						}
+						callback.onResult(remoteResult);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the locally available objects are still returned
+				Log.e(TAG, "remote retrieval rejected: " + e.toString());
+				callback.onError(new CoreException(e));
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Gets a set of objects specified by an {@link IdSet}, loading them in windows as they are accessed.
+	 * <p/>
+	 * Each window is loaded with {@link #get(IdSet, int)}, which uses the bulk local and remote paths.
+	 * @param ids
+	 * @param scope
+	 * @param windowSize number of objects loaded at a time.
+	 * @return
+	 */
+	public LazyResultSet<T> getLazy(IdSet ids, final int scope, int windowSize) {
+		return new LazyResultSet<T>(ids, windowSize, new LazyResultSet.Loader<T>() {
+			@Override
+			public ResultSet<T> load(IdSet windowIds) throws CoreException {
+				return get(windowIds, scope);
+			}
+		});
+	}
+
+
+	/**
+	 * Adds objects available in the cache or in local storage to the specified result.
+	 * @param sortedIds
+	 * @param scope
+	 * @param result
+	 * @param recordAccess true to record the accesses with the cache policy and statistics,
+	 * false for prefetching.
+	 * @return ids of objects that are not available locally, or null if there are none or scope is not {@code SCOPE_ALL}.
+	 * @throws CoreException
+	 */
+	private IdSet getAvailable(IdSet sortedIds, int scope, ResultSet<T> result, boolean recordAccess)
+			throws CoreException {
+		int n = sortedIds.size();
+		Object[] cached = new Object[n];
+		IdSet localIds = null;
+		for (int i = 0; i < n; i++) {
+			long id = sortedIds.get(i);
+			T o = recordAccess ? cache.lookup(id) : cache.get(id);
+			if (o == null) {
+				if (localIds == null) {
+					localIds = new IdSet();
+				}
+				localIds.add(id);
+			} else {
+				if (recordAccess) {
+					stats.recordMemoryHit();
+				}
+				cached[i] = o;
+			}
+		}
+
+		ResultSet<T> local = (localIds != null) ? loadLocalBulk(localIds) : null;
 		IdSet missingIds = null;
-		for (long id : sortedIds) {
-			T o = cache.get(id);
+		for (int i = 0; i < n; i++) {
+			@SuppressWarnings("unchecked")
+			T o = (T) cached[i];
 			if (o == null) {
-				o = getLocal(id);
-				if ((o == null) && (scope == SCOPE_ALL)) {
-					if (missingIds == null) {
-						missingIds = new IdSet();
+				long id = sortedIds.get(i);
+				o = local.get(id);
+				if (o == null) {
+					if (scope == SCOPE_ALL) {
+						if (missingIds == null) {
+							missingIds = new IdSet();
+						}
+						missingIds.add(id);
 					}
-					missingIds.add(id);
-				} else {
-					cache.put(id, o);
-					result.append(o);
+					continue;
 				}
-			} else {
-				result.append(o);
+				cache.offer(o);
 			}
+			result.append(o);
+		}
+		return missingIds;
+	}
+
+
+	/**
+	 * Enables or disables prefetching.
+	 * <p/>
+	 * While enabled, requests for sets of objects are observed by a {@link Prefetcher}. When requests
+	 * follow a regular pattern, the predicted next set is loaded into the cache on the specified
+	 * {@link Executor}, from remote storage if the request's scope is {@code SCOPE_ALL}.
+	 * Prefetched objects are subject to the cache policy, but prefetching does not count as an access.
+	 * @param executor executor used for prefetching, or null to disable.
+	 */
+	public void setPrefetchExecutor(Executor executor) {
+		prefetcher.reset();
+		prefetchExecutor = executor;
+	}
+
+
+	/**
+	 * Observes a request and prefetches the predicted next set of objects, if prefetching is enabled.
+	 * @param sortedIds
+	 * @param scope
+	 */
+	private void prefetch(IdSet sortedIds, final int scope) {
+		Executor executor = prefetchExecutor;
+		if (executor == null) {
+			return;
+		}
+
+		final IdSet prediction = prefetcher.observe(sortedIds);
+		if (prediction == null) {
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						IdSet predictedIds = prediction.toSorted();
+						ResultSet<T> result = new ResultSet<T>(predictedIds.size());
+						IdSet missingIds = getAvailable(predictedIds, scope, result, false);
+						if (scope == SCOPE_ALL) {
+							pullRemoteAll(missingIds, result);
+						}
+					} catch (CoreException e) {
+						Log.e(TAG, "exception while prefetching: " + e.toString());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the request itself has completed, so only the prefetch is lost
+			Log.e(TAG, "prefetch rejected: " + e.toString());
 		}
+	}
+
 
-		pullRemote(missingIds, result);
+	/**
+	 * Gets missing objects from remote storage, then refreshes any stale objects in the result.
+	 * @param missingIds
+	 * @param result
+	 * @throws CoreException
+	 */
+	private void pullRemoteAll(IdSet missingIds, ResultSet<T> result) throws CoreException {
+		pullRemote(missingIds, result, false);
 
 		IdSet staleIds = null;
+		long now = System.currentTimeMillis();
 		int size = result.size();
 		for (int i = 0; i < size; i++) {
 			T o = result.valueAt(i);
-			if (o.isStale()) {
+			if (isExpired(o, now)) {
 				if (staleIds == null) {
 					staleIds = new IdSet();
 				}
@@ -123,9 +383,80 @@ public abstract class RemoteProvider <T extends IdObject> {
 			}
 		}
 
-		pullRemote(staleIds, result);
+		Executor executor = revalidateExecutor;
+		if (executor != null) {
+			revalidate(executor, staleIds);
+		} else {
+			pullRemote(staleIds, result, true);
+		}
+	}
 
-		return result;
+
+	/**
+	 * Retrieves stale objects from remote storage in the background and notifies the revalidate callback.
+	 * <p/>
+	 * Ids that are already being revalidated are skipped.
+	 * @param executor
+	 * @param ids
+	 */
+	private void revalidate(Executor executor, IdSet ids) {
+		if ((ids == null) || ids.isEmpty()) {
+			return;
+		}
+
+		final IdSet pendingIds = new IdSet(ids.size());
+		synchronized (revalidatingIds) {
+			int size = ids.size();
+			for (int i = 0; i < size; i++) {
+				long id = ids.get(i);
+				if (revalidatingIds.add(id)) {
+					pendingIds.add(id);
+				}
+			}
+		}
+		if (pendingIds.isEmpty()) {
+			return;
+		}
+
+		final Callback<T> callback = revalidateCallback;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ResultSet<T> result = new ResultSet<T>(pendingIds.size());
+						pullRemote(pendingIds, result, true);
+						if (callback != null) {
+							callback.onResult(result);
+						}
+					} catch (CoreException e) {
+						if (callback != null) {
+							callback.onError(e);
+						}
+					} finally {
+						endRevalidation(pendingIds);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// allow the ids to be revalidated again once the executor accepts tasks
+			endRevalidation(pendingIds);
+			Log.e(TAG, "revalidation rejected: " + e.toString());
+		}
+	}
+
+
+	/**
+	 * Marks ids as no longer being revalidated.
+	 * @param ids
+	 */
+	private void endRevalidation(IdSet ids) {
+		synchronized (revalidatingIds) {
+			int size = ids.size();
+			for (int i = 0; i < size; i++) {
+				revalidatingIds.remove(ids.get(i));
+			}
+		}
 	}
 
 
@@ -133,21 +464,51 @@ public abstract class RemoteProvider <T extends IdObject> {
 	 * Gets objects from remote storage, updates caches and adds them to the specified result.
 	 * @param ids
 	 * @param result
+	 * @param stale true if the objects are stale, false if they are missing.
 	 * @throws CoreException
 	 */
-	private void pullRemote(IdSet ids, ResultSet<T> result) throws CoreException {
+	private void pullRemote(IdSet ids, ResultSet<T> result, boolean stale) throws CoreException {
 		if ((ids != null) && !ids.isEmpty()) {
-			List<T> bulkObjects = getRemoteBulk(ids);
-			updateLocalBulk(bulkObjects);
-			for(T o : bulkObjects) {
-				cache.put(o.getId(), o);
-				result.put(o);
+			List<T> bulkObjects = new ArrayList<T>(ids.size());
+			try {
+				fetchRemoteBulk(ids, bulkObjects);
+			} catch (CoreException e) {
+				// keep the batches retrieved before the failure
+				storePulled(bulkObjects, result, stale);
+				throw e;
 			}
+			storePulled(bulkObjects, result, stale);
 		}
 
 	}
 
 
+	/**
+	 * Updates caches with objects retrieved from remote storage and adds them to the specified result.
+	 * @param bulkObjects
+	 * @param result
+	 * @param stale true if the objects are stale, false if they are missing.
+	 * @throws CoreException
+	 */
+	private void storePulled(List<T> bulkObjects, ResultSet<T> result, boolean stale) throws CoreException {
+		if (bulkObjects.isEmpty()) {
+			return;
+		}
+		stats.recordRemoteFetches(bulkObjects.size(), stale);
+		storeLocalBulk(bulkObjects);
+		for(T o : bulkObjects) {
+			cache.offer(o);
+			result.put(o);
+		}
+
+		// stale objects retrieved here no longer need a background refresh
+		RefreshQueue queue = refreshQueue;
+		if (stale && (queue != null)) {
+			queue.remove(getIds(bulkObjects));
+		}
+	}
+
+
 	/**
 	 * Refreshes a single object.
 	 * @param id
@@ -155,12 +516,27 @@ public abstract class RemoteProvider <T extends IdObject> {
 	 * @throws CoreException
 	 */
 	public void refresh(long id, boolean defer) throws CoreException {
+		QueryCache queries = queryCache;
+		if (queries != null) {
+			queries.invalidate(id);
+		}
+
 		if (!defer) {
-			T o = getRemote(id);
+			T o;
+			try {
+				o = fetchRemote(id);
+			} catch (CoreException e) {
+				if (refreshQueue != null) {
+					defer(id);
+				}
+				throw e;
+			}
 			if (o != null) {
-				updateLocal(o);
-				if (cache.get(id) != null) {
-					cache.put(o.getId(), o);
+				storeLocal(o);
+				cache.replace(o);
+				RefreshQueue queue = refreshQueue;
+				if (queue != null) {
+					queue.remove(id);
 				}
 			} else {
 				defer = true;
@@ -168,11 +544,7 @@ public abstract class RemoteProvider <T extends IdObject> {
 		}
 
 		if (defer) {
-			markStaleLocal(id);
-			T o = cache.get(id);
-			if (o != null) {
-				o.setStale(true);
-			}
+			defer(id);
 		}
 	}
 
@@ -184,48 +556,739 @@ public abstract class RemoteProvider <T extends IdObject> {
 	 * @throws CoreException
 	 */
 	public void refresh(IdSet ids, boolean defer) throws CoreException {
+		QueryCache queries = queryCache;
+		if (queries != null) {
+			queries.invalidate(ids);
+		}
+
 		if (!defer) {
-			List<T> bulkObjects = getRemoteBulk(ids);
-			updateLocalBulk(bulkObjects);
-			IdSet missingIds = null;
-			int srcIndex = 0;
-			for(T o : bulkObjects) {
-				long id = o.getId();
-				if (cache.get(id) != null) {
-					cache.put(id, o);
+			IdSet sortedIds = ids.toSorted();
+			List<T> bulkObjects = new ArrayList<T>(sortedIds.size());
+			try {
+				fetchRemoteBulk(sortedIds, bulkObjects);
+			} catch (CoreException e) {
+				// keep the batches retrieved before the failure and defer the rest
+				if (!bulkObjects.isEmpty()) {
+					storeLocalBulk(bulkObjects);
+					cache.replace(bulkObjects);
 				}
-
-				while (true) {
-					long sId = ids.get(srcIndex);
-					if (id == sId) {
-						break;
-					}
-					if (missingIds == null) {
-						missingIds = new IdSet();
-					}
-					missingIds.add(sId);
-					srcIndex++;
+				if (refreshQueue != null) {
+					defer(getMissing(sortedIds, bulkObjects));
 				}
+				throw e;
+			}
+			storeLocalBulk(bulkObjects);
+			cache.replace(bulkObjects);
+			RefreshQueue queue = refreshQueue;
+			if (queue != null) {
+				queue.remove(getIds(bulkObjects));
 			}
 
 			// objects that failed to be retrieved will be deferred
-			if (missingIds != null) {
-				defer = true;
-				ids = missingIds;
+			IdSet missingIds = getMissing(sortedIds, bulkObjects);
+			if (missingIds.isEmpty()) {
+				return;
 			}
+			defer = true;
+			ids = missingIds;
 		}
 
 		if (defer) {
-			markStaleLocalBulk(ids);
+			defer(ids);
+		}
+	}
+
+
+	/**
+	 * Determines which of a set of requested ids are missing from a response, with a single merge pass.
+	 * <p/>
+	 * The response may be in any order, incomplete, or contain duplicates and unrequested objects.
+	 * @param sortedIds the requested ids, sorted.
+	 * @param objects the objects received.
+	 * @return the missing ids, sorted.
+	 */
+	private IdSet getMissing(IdSet sortedIds, List<T> objects) {
+		int n = objects.size();
+		long[] receivedIds = new long[n];
+		int i = 0;
+		for (T o : objects) {
+			receivedIds[i++] = o.getId();
+		}
+		IdSet received = IdSet.wrap(receivedIds, n);
+		received.sort();
+
+		int size = sortedIds.size();
+		int receivedSize = received.size();
+		IdSet missingIds = new IdSet();
+		int j = 0;
+		for (i = 0; i < size; i++) {
+			long id = sortedIds.get(i);
+			while ((j < receivedSize) && (received.get(j) < id)) {
+				j++;
+			}
+			if ((j < receivedSize) && (received.get(j) == id)) {
+				j++;
+			} else {
+				missingIds.add(id);
+			}
+		}
+		return missingIds;
+	}
+
+
+	/**
+	 * Gets the ids of a list of objects.
+	 * @param objects
+	 * @return
+	 */
+	private IdSet getIds(List<T> objects) {
+		IdSet ids = new IdSet(objects.size());
+		for (T o : objects) {
+			ids.add(o.getId());
+		}
+		return ids;
+	}
+
+
+	/**
+	 * Marks an object stale and queues it for a background refresh, if a refresh queue is set.
+	 * @param id
+	 * @throws CoreException
+	 */
+	private void defer(long id) throws CoreException {
+		storeStale(id);
+		cache.markStale(id);
+
+		RefreshQueue queue = refreshQueue;
+		if (queue != null) {
+			queue.add(id);
+		}
+	}
+
+
+	/**
+	 * Marks a set of objects stale and queues them for a background refresh, if a refresh queue is set.
+	 * @param ids
+	 * @throws CoreException
+	 */
+	private void defer(IdSet ids) throws CoreException {
+		storeStaleBulk(ids);
+		cache.markStale(ids);
+
+		RefreshQueue queue = refreshQueue;
+		if (queue != null) {
+			queue.add(ids);
+		}
+	}
+
+
+	/**
+	 * Sets the queue that refreshes deferred and failed refreshes in the background.
+	 * <p/>
+	 * While set, objects marked stale by {@link #refresh(long, boolean)}, {@link #refresh(IdSet, boolean)}
+	 * and {@link #sync()} are added to the queue, which retrieves them again in bulk and retries with
+	 * backoff while remote storage is unreachable. Ids still pending from a previous run are drained
+	 * as soon as the queue is set.
+	 * @param queue the queue, or null to disable background refreshes.
+	 */
+	public void setRefreshQueue(RefreshQueue queue) {
+		RefreshQueue oldQueue = refreshQueue;
+		if (oldQueue != null) {
+			oldQueue.setDrainer(null);
+		}
+		refreshQueue = queue;
+		if (queue != null) {
+			queue.setDrainer(new RefreshQueue.Drainer() {
+				@Override
+				public void drain(IdSet ids) throws CoreException {
+					drainRefresh(ids);
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Gets the queue that refreshes deferred and failed refreshes in the background.
+	 * @return the queue, or null if background refreshes are disabled.
+	 */
+	public RefreshQueue getRefreshQueue() {
+		return refreshQueue;
+	}
+
+
+	/**
+	 * Retrieves objects queued for a background refresh.
+	 * <p/>
+	 * Objects no longer available remotely stay marked stale locally.
+	 * @param ids
+	 * @throws CoreException
+	 */
+	private void drainRefresh(IdSet ids) throws CoreException {
+		List<T> bulkObjects = new ArrayList<T>(ids.size());
+		try {
+			fetchRemoteBulk(ids, bulkObjects);
+		} catch (CoreException e) {
+			// keep the batches retrieved before the failure, so that retries skip them
+			if (!bulkObjects.isEmpty()) {
+				storeLocalBulk(bulkObjects);
+				cache.replace(bulkObjects);
+				RefreshQueue queue = refreshQueue;
+				if (queue != null) {
+					queue.remove(getIds(bulkObjects));
+				}
+			}
+			throw e;
+		}
+		storeLocalBulk(bulkObjects);
+		cache.replace(bulkObjects);
+	}
+
+
+	/**
+	 * Synchronizes with remote storage using the changes reported since the last sync.
+	 * <p/>
+	 * Changed objects in the cache are retrieved again in bulk, other changed objects are marked stale
+	 * and retrieved when next requested. Removed objects are dropped from the cache and local storage.
+	 * Requires {@link #getRemoteChanges(long)} to be implemented.
+	 * @return number of changed and removed objects.
+	 * @throws CoreException
+	 */
+	public int sync() throws CoreException {
+		Changes changes = getRemoteChanges(syncCursor);
+		int count = 0;
+
+		IdSet changedIds = changes.changedIds;
+		if ((changedIds != null) && !changedIds.isEmpty()) {
+			int size = changedIds.size();
+			IdSet cachedIds = cache.getCachedIds(changedIds);
+			IdSet uncachedIds = new IdSet(size - cachedIds.size());
+			for (int i = 0, j = 0; i < size; i++) {
+				long id = changedIds.get(i);
+				if ((j < cachedIds.size()) && (cachedIds.get(j) == id)) {
+					j++;
+				} else {
+					uncachedIds.add(id);
+				}
+			}
+			if (!cachedIds.isEmpty()) {
+				refresh(cachedIds, false);
+			}
+			if (!uncachedIds.isEmpty()) {
+				refresh(uncachedIds, true);
+			}
+			count += size;
+		}
+
+		IdSet removedIds = changes.removedIds;
+		if ((removedIds != null) && !removedIds.isEmpty()) {
+			flush();
+			removeLocalBulk(removedIds);
+			QueryCache queries = queryCache;
+			if (queries != null) {
+				queries.invalidate(removedIds);
+			}
+			int size = removedIds.size();
+			for (int i = 0; i < size; i++) {
+				cache.discard(removedIds.get(i));
+			}
+			count += size;
+		}
+
+		syncCursor = changes.cursor;
+		return count;
+	}
+
+
+	/**
+	 * Sets the sync cursor, for example after restoring it from persistent storage.
+	 * @param syncCursor
+	 */
+	public void setSyncCursor(long syncCursor) {
+		this.syncCursor = syncCursor;
+	}
+
+
+	/**
+	 * Gets the sync cursor, which should be persisted to avoid a full sync after a restart.
+	 * @return
+	 */
+	public long getSyncCursor() {
+		return syncCursor;
+	}
+
+
+	/**
+	 * Sets the query cache invalidated by refreshes.
+	 * <p/>
+	 * Cached queries whose results contain refreshed objects are invalidated.
+	 * @param queryCache the query cache, or null for none.
+	 */
+	public void setQueryCache(QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
+
+	/**
+	 * Sets the time-to-live of objects retrieved from remote storage.
+	 * <p/>
+	 * Objects older than this are treated as stale and retrieved again when requested with {@code SCOPE_ALL}.
+	 * Objects with an unknown fetch time, such as objects loaded from local storage that does not restore
+	 * fetch times, are treated as expired.
+	 * @param timeToLive time in milliseconds, or 0 to disable.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+
+	/**
+	 * Gets the time-to-live of objects retrieved from remote storage.
+	 * @return time in milliseconds, or 0 if disabled.
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+
+	/**
+	 * Enables or disables stale-while-revalidate mode.
+	 * <p/>
+	 * In this mode, requests with {@code SCOPE_ALL} return stale objects immediately instead of waiting
+	 * for remote storage. The stale objects are retrieved in bulk on the specified {@link Executor} and
+	 * the updated objects are delivered to the callback on that executor's thread.
+	 * @param executor executor used for revalidation, or null to disable.
+	 * @param callback callback notified of updated objects, may be null.
+	 */
+	public void setStaleWhileRevalidate(Executor executor, Callback<T> callback) {
+		revalidateCallback = callback;
+		revalidateExecutor = executor;
+	}
+
+
+	/**
+	 * Sets the admission policy of the cache.
+	 * <p/>
+	 * By default, every object is admitted and the least-recently-used object is evicted.
+	 * @param policy the policy, such as a {@link FrequencyCachePolicy}, or null to admit all objects.
+	 */
+	public void setCachePolicy(CachePolicy policy) {
+		cache.setPolicy(policy);
+	}
+
+
+	/**
+	 * Sets the type of the second tier of the cache, which keeps evicted objects by weak or soft reference.
+	 * @param secondTier {@code ProviderCache.SECOND_TIER_NONE}, {@code ProviderCache.SECOND_TIER_WEAK}
+	 * or {@code ProviderCache.SECOND_TIER_SOFT}.
+	 */
+	public void setCacheSecondTier(int secondTier) {
+		cache.setSecondTier(secondTier);
+	}
+
+
+	/**
+	 * Saves the ids of all cached objects to a snapshot file.
+	 * <p/>
+	 * Call this on a background thread, for example when the application is moved to the background
+	 * or asked to trim memory, and call {@link #loadSnapshot(File)} on startup.
+	 * @param file
+	 * @throws CoreException
+	 */
+	public void saveSnapshot(File file) throws CoreException {
+		IdSnapshot.write(file, cache.hotIds());
+	}
+
+
+	/**
+	 * Loads the objects listed in a snapshot file from local storage into the cache.
+	 * <p/>
+	 * The ids are read with a single sequential read and the objects are loaded with the bulk local path.
+	 * @param file
+	 * @return number of objects loaded into the cache.
+	 * @throws CoreException
+	 */
+	public int loadSnapshot(File file) throws CoreException {
+		long[] ids = IdSnapshot.read(file);
+		if ((ids == null) || (ids.length == 0)) {
+			return 0;
+		}
+
+		ResultSet<T> objects = loadLocalBulk(IdSet.wrap(ids));
+		int count = 0;
+		for (long id : ids) {
+			T o = objects.get(id);
+			if ((o != null) && cache.offer(o)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Gets a snapshot of the cache statistics.
+	 * @return
+	 */
+	public ProviderStats.Snapshot getStats() {
+		return stats.snapshot();
+	}
+
+
+	/**
+	 * Resets the cache statistics.
+	 */
+	public void resetStats() {
+		stats.reset();
+	}
+
+
+	/**
+	 * Determines if an object is stale or has outlived the time-to-live.
+	 * @param o
+	 * @param now current time in milliseconds since the epoch.
+	 * @return
+	 */
+	protected boolean isExpired(T o, long now) {
+		if (o.isStale()) {
+			return true;
+		}
+		if (timeToLive <= 0) {
+			return false;
+		}
+		long fetchTime = o.getFetchTime();
+		return (fetchTime == 0) || (now - fetchTime > timeToLive);
+	}
+
+
+	/**
+	 * Gets an object from remote storage and records its fetch time.
+	 * @param id
+	 * @return
+	 * @throws CoreException
+	 */
+	private T fetchRemote(long id) throws CoreException {
+		long start = System.nanoTime();
+		T o = getRemote(id);
+		stats.recordGetRemote(System.nanoTime() - start);
+		if (o != null) {
+			o.setFetchTime(System.currentTimeMillis());
+		}
+		return o;
+	}
+
+
+	/**
+	 * Gets a set of objects from remote storage and records their fetch time.
+	 * <p/>
+	 * Objects are added to the specified list as each batch completes, so if a later batch fails,
+	 * the list still holds the objects of the earlier batches.
+	 * @param ids
+	 * @param bulkObjects list the objects are added to.
+	 * @throws CoreException
+	 */
+	private void fetchRemoteBulk(IdSet ids, List<T> bulkObjects) throws CoreException {
+		BatchSizeController controller = batchSizeController;
+		int size = ids.size();
+		if ((controller == null) || (size <= controller.getBatchSize())) {
+			bulkObjects.addAll(fetchRemoteBatch(ids, controller));
+			return;
+		}
+
+		long[] array = ids.getBackingArray();
+		int start = 0;
+		while (start < size) {
+			int end = Math.min(start + controller.getBatchSize(), size);
+			long[] batch = new long[end - start];
+			System.arraycopy(array, start, batch, 0, batch.length);
+			bulkObjects.addAll(fetchRemoteBatch(IdSet.wrap(batch), controller));
+			start = end;
+		}
+	}
+
+
+	/**
+	 * Gets a single batch of objects from remote storage and records their fetch time.
+	 * @param ids
+	 * @param controller controller to report the timing to, may be null.
+	 * @return
+	 * @throws CoreException
+	 */
+	private List<T> fetchRemoteBatch(IdSet ids, BatchSizeController controller) throws CoreException {
+		long start = System.nanoTime();
+		List<T> bulkObjects;
+		try {
+			bulkObjects = getRemoteBulk(ids);
+		} catch (CoreException e) {
+			if (controller != null) {
+				controller.recordFailure();
+			}
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		stats.recordGetRemoteBulk(elapsed);
+		if (controller != null) {
+			controller.record(ids.size(), elapsed);
+		}
+		long now = System.currentTimeMillis();
+		for (T o : bulkObjects) {
+			o.setFetchTime(now);
+		}
+		return bulkObjects;
+	}
+
+
+	/**
+	 * Sets the controller that splits bulk remote requests into batches.
+	 * <p/>
+	 * While set, {@link #getRemoteBulk(IdSet)} is called with at most the controller's current batch size
+	 * of ids, and the controller adapts the batch size to the observed timings.
+	 * @param controller the controller, or null to request all ids at once.
+	 */
+	public void setBatchSizeController(BatchSizeController controller) {
+		batchSizeController = controller;
+	}
+
+
+	/**
+	 * Gets the controller that splits bulk remote requests into batches.
+	 * @return the controller, or null if bulk requests are not split.
+	 */
+	public BatchSizeController getBatchSizeController() {
+		return batchSizeController;
+	}
+
+
+	/**
+	 * Enables or disables write-behind buffering of local storage writes.
+	 * <p/>
+	 * While enabled, updates and stale marks are buffered and written in bulk through
+	 * {@link #writeLocal(List, IdSet)} when the buffer is full, periodically if an executor is specified,
+	 * or when {@link #flush()} is called. Disabling write-behind flushes pending writes.
+	 * @param maxPending number of pending writes that triggers a flush, or 0 to disable.
+	 * @param executor executor used for periodic flushes, may be null.
+	 * @param flushDelay delay in milliseconds between the first pending write and a periodic flush.
+	 * @throws CoreException
+	 */
+	public void setWriteBehind(int maxPending, ScheduledExecutorService executor, long flushDelay)
+			throws CoreException {
+		flush();
+		writeBehindBuffer = (maxPending > 0) ? new WriteBehindBuffer<T>(this, maxPending, executor, flushDelay) : null;
+	}
+
+
+	/**
+	 * Writes all buffered updates and stale marks to local storage.
+	 * @throws CoreException
+	 */
+	public void flush() throws CoreException {
+		WriteBehindBuffer<T> buffer = writeBehindBuffer;
+		if (buffer != null) {
+			buffer.flush();
+		}
+	}
+
+
+	/**
+	 * Enables the existence filter, a Bloom filter of the ids in local storage.
+	 * <p/>
+	 * While enabled, local storage is not queried for ids that have definitely never been stored.
+	 * The filter is built from {@link #getLocalIds()}, which must be implemented, and kept up to date
+	 * as objects are stored. Call this on a background thread at startup.
+	 * @param expectedCount expected number of objects in local storage.
+	 * @param falsePositiveRate acceptable rate of unnecessary local queries, such as 0.01.
+	 * @throws CoreException
+	 */
+	public void enableExistenceFilter(int expectedCount, double falsePositiveRate) throws CoreException {
+		IdBloomFilter filter = new IdBloomFilter(expectedCount, falsePositiveRate);
+		existenceFilterReady = false;
+		existenceFilter = filter;
+		try {
+			filter.add(getLocalIds());
+		} catch (CoreException e) {
+			existenceFilter = null;
+			throw e;
+		}
+		existenceFilterReady = true;
+	}
+
+
+	/**
+	 * Disables the existence filter.
+	 */
+	public void disableExistenceFilter() {
+		existenceFilterReady = false;
+		existenceFilter = null;
+	}
+
+
+	/**
+	 * Determines if an object might exist in local storage, according to the existence filter.
+	 * @param id
+	 * @return false if the object has definitely never been stored locally.
+	 */
+	private boolean mightExistLocally(long id) {
+		IdBloomFilter filter = existenceFilter;
+		return !existenceFilterReady || (filter == null) || filter.mightContain(id);
+	}
+
+
+	/**
+	 * Retrieves an object from local storage, taking buffered writes into account.
+	 * @param id
+	 * @return
+	 * @throws CoreException
+	 */
+	private T loadLocal(long id) throws CoreException {
+		WriteBehindBuffer<T> buffer = writeBehindBuffer;
+		T o = (buffer != null) ? buffer.getPending(id) : null;
+		if ((o == null) && mightExistLocally(id)) {
+			long start = System.nanoTime();
+			o = getLocal(id);
+			stats.recordGetLocal(o != null, System.nanoTime() - start);
+		}
+		if ((o != null) && (buffer != null) && buffer.isPendingStale(id)) {
+			o.setStale(true);
+		}
+		return o;
+	}
+
+
+	/**
+	 * Retrieves a set of objects from local storage, taking buffered writes into account.
+	 * @param ids
+	 * @return
+	 * @throws CoreException
+	 */
+	private ResultSet<T> loadLocalBulk(IdSet ids) throws CoreException {
+		WriteBehindBuffer<T> buffer = writeBehindBuffer;
+		IdBloomFilter filter = existenceFilterReady ? existenceFilter : null;
+		ResultSet<T> result = new ResultSet<T>(ids.size());
+		IdSet queryIds = ids;
+		if ((buffer != null) || (filter != null)) {
 			int size = ids.size();
+			queryIds = new IdSet(size);
 			for (int i = 0; i < size; i++) {
 				long id = ids.get(i);
-				T o = cache.get(id);
+				T o = (buffer != null) ? buffer.getPending(id) : null;
 				if (o != null) {
+					result.append(o);
+				} else if ((filter == null) || filter.mightContain(id)) {
+					queryIds.add(id);
+				}
+			}
+		}
+
+		if (!queryIds.isEmpty()) {
+			long start = System.nanoTime();
+			List<T> objects = getLocalBulk(queryIds);
+			stats.recordGetLocalBulk(queryIds.size(), objects.size(), System.nanoTime() - start);
+			for (T o : objects) {
+				result.append(o);
+			}
+		}
+
+		if (buffer != null) {
+			int size = result.size();
+			for (int i = 0; i < size; i++) {
+				T o = result.valueAt(i);
+				if (buffer.isPendingStale(o.getId())) {
 					o.setStale(true);
 				}
 			}
 		}
+		return result;
+	}
+
+
+	/**
+	 * Updates an object in local storage or buffers the update.
+	 * @param o
+	 * @throws CoreException
+	 */
+	private void storeLocal(T o) throws CoreException {
+		IdBloomFilter filter = existenceFilter;
+		if (filter != null) {
+			filter.add(o.getId());
+		}
+
+		WriteBehindBuffer<T> buffer = writeBehindBuffer;
+		if (buffer == null) {
+			updateLocal(o);
+		} else if (buffer.update(o)) {
+			buffer.flush();
+		}
+	}
+
+
+	/**
+	 * Updates a set of objects in local storage or buffers the updates.
+	 * @param set
+	 * @throws CoreException
+	 */
+	private void storeLocalBulk(List<T> set) throws CoreException {
+		IdBloomFilter filter = existenceFilter;
+		if (filter != null) {
+			for (T o : set) {
+				filter.add(o.getId());
+			}
+		}
+
+		WriteBehindBuffer<T> buffer = writeBehindBuffer;
+		if (buffer == null) {
+			updateLocalBulk(set);
+		} else if (buffer.update(set)) {
+			buffer.flush();
+		}
+	}
+
+
+	/**
+	 * Marks an object as stale in local storage or buffers the stale mark.
+	 * @param id
+	 * @throws CoreException
+	 */
+	private void storeStale(long id) throws CoreException {
+		WriteBehindBuffer<T> buffer = writeBehindBuffer;
+		if (buffer == null) {
+			markStaleLocal(id);
+		} else if (buffer.markStale(id)) {
+			buffer.flush();
+		}
+	}
+
+
+	/**
+	 * Marks a set of objects as stale in local storage or buffers the stale marks.
+	 * @param ids
+	 * @throws CoreException
+	 */
+	private void storeStaleBulk(IdSet ids) throws CoreException {
+		WriteBehindBuffer<T> buffer = writeBehindBuffer;
+		if (buffer == null) {
+			markStaleLocalBulk(ids);
+		} else if (buffer.markStale(ids)) {
+			buffer.flush();
+		}
+	}
+
+
+	/**
+	 * Writes buffered updates and stale marks to local storage.
+	 * <p/>
+	 * Updates are written before stale marks. Override this in derived classes to wrap both
+	 * in a single transaction.
+	 * @param set objects to update, may be empty.
+	 * @param staleIds ids of objects to mark as stale, may be empty.
+	 * @throws CoreException
+	 */
+	protected void writeLocal(List<T> set, IdSet staleIds) throws CoreException {
+		if (!set.isEmpty()) {
+			updateLocalBulk(set);
+		}
+		if (!staleIds.isEmpty()) {
+			markStaleLocalBulk(staleIds);
+		}
 	}
 
 
@@ -240,6 +1303,41 @@ public abstract class RemoteProvider <T extends IdObject> {
 	protected abstract T getLocal(long id) throws CoreException;
 
 
+	/**
+	 * Retrieves a set of objects from local storage.
+	 * <p/>
+	 * The default implementation calls {@link #getLocal(long)} for each id. Override this in derived
+	 * classes to retrieve all objects with a single query.
+	 * @param ids The ids of the objects
+	 * @return The objects that are available, preferably in ascending id order
+	 * @throws CoreException
+	 */
+	protected List<T> getLocalBulk(IdSet ids) throws CoreException {
+		int size = ids.size();
+		List<T> objects = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++) {
+			T o = getLocal(ids.get(i));
+			if (o != null) {
+				objects.add(o);
+			}
+		}
+		return objects;
+	}
+
+
+	/**
+	 * Gets the ids of all objects in local storage.
+	 * <p/>
+	 * Override this in derived classes to support {@link #enableExistenceFilter(int, double)}.
+	 * The default implementation throws an exception.
+	 * @return
+	 * @throws CoreException
+	 */
+	protected IdSet getLocalIds() throws CoreException {
+		throw new CoreException("local id enumeration is not supported by " + getClass().getName());
+	}
+
+
 	/**
 	 * Updates an object in local storage.
 	 * <p/>
@@ -284,6 +1382,32 @@ public abstract class RemoteProvider <T extends IdObject> {
 	protected abstract void updateLocalBulk(List<T> set) throws CoreException;
 
 
+	/**
+	 * Gets the changes in remote storage since a sync cursor.
+	 * <p/>
+	 * Override this in derived classes to support {@link #sync()}. The default implementation throws an exception.
+	 * @param cursor cursor returned by the previous sync, or 0 for the first sync.
+	 * @return
+	 * @throws CoreException
+	 */
+	protected Changes getRemoteChanges(long cursor) throws CoreException {
+		throw new CoreException("sync is not supported by " + getClass().getName());
+	}
+
+
+	/**
+	 * Removes a set of objects from local storage.
+	 * <p/>
+	 * Override this in derived classes to support removals reported by {@link #sync()}.
+	 * The default implementation marks the objects as stale.
+	 * @param ids
+	 * @throws CoreException
+	 */
+	protected void removeLocalBulk(IdSet ids) throws CoreException {
+		markStaleLocalBulk(ids);
+	}
+
+
 	/**
 	 * Gets an object from remote storage.
 	 * <p/>
@@ -16,7 +16,18 @@
 
 package com.arthurpitman.common.data;
 
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.arthurpitman.common.CoreException;
 
 
 /**
@@ -25,6 +36,34 @@ import java.util.Arrays;
  */
 public class ResultSet<T extends IdObject> {
 
+	/**
+	 * Visits the objects of a ResultSet.
+	 * @param <T>
+	 */
+	public interface Visitor<T> {
+		void visit(long id, T value);
+	}
+
+
+	/**
+	 * Decides which objects to keep when filtering a ResultSet.
+	 * @param <T>
+	 */
+	public interface Predicate<T> {
+		boolean accept(T value);
+	}
+
+
+	/**
+	 * Maps the objects of a ResultSet to other values.
+	 * @param <T>
+	 * @param <R>
+	 */
+	public interface Mapper<T, R> {
+		R map(T value);
+	}
+
+
 	private static final int DEFAULT_CAPACITY = 10;
 	private int size = 0;
 	private long[] ids;
@@ -148,17 +187,197 @@ public class ResultSet<T extends IdObject> {
 	}
 
 
+	/**
+	 * Visits all objects in ascending ID order without allocating.
+	 * @param visitor
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<? super T> visitor) {
+		for (int i = 0; i < size; i++) {
+			visitor.visit(ids[i], (T) values[i]);
+		}
+	}
+
+
+	/**
+	 * Removes all objects not accepted by a predicate, in place.
+	 * @param predicate
+	 * @return the number of objects removed.
+	 */
+	@SuppressWarnings("unchecked")
+	public int filter(Predicate<? super T> predicate) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (predicate.accept((T) values[i])) {
+				ids[n] = ids[i];
+				values[n] = values[i];
+				n++;
+			}
+		}
+		int removed = size - n;
+		Arrays.fill(values, n, size, null);
+		size = n;
+		return removed;
+	}
+
+
+	/**
+	 * Creates a new ResultSet containing a range of this ResultSet.
+	 * <p/>
+	 * The range is copied in bulk, so later changes to either ResultSet do not affect the other.
+	 * @param start first index, inclusive.
+	 * @param end last index, exclusive.
+	 * @return
+	 */
+	public ResultSet<T> subRange(int start, int end) {
+		if ((start < 0) || (end > size) || (start > end)) {
+			throw new IndexOutOfBoundsException("invalid range " + start + " to " + end + " for size " + size);
+		}
+		int n = end - start;
+		ResultSet<T> result = new ResultSet<T>(n);
+		System.arraycopy(ids, start, result.ids, 0, n);
+		System.arraycopy(values, start, result.values, 0, n);
+		result.size = n;
+		return result;
+	}
+
+
+	/**
+	 * Maps all objects into an array, in ascending ID order.
+	 * @param mapper
+	 * @param target array to map into if it is large enough; otherwise a new array of the same type is allocated.
+	 * @return the array holding the mapped values.
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> R[] map(Mapper<? super T, ? extends R> mapper, R[] target) {
+		R[] result = allocate(target);
+		for (int i = 0; i < size; i++) {
+			result[i] = mapper.map((T) values[i]);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Maps all objects into an array in parallel, in ascending ID order.
+	 * <p/>
+	 * The objects are split into chunks that are mapped concurrently by an executor.
+	 * The mapper must be thread-safe.
+	 * @param mapper
+	 * @param target array to map into if it is large enough; otherwise a new array of the same type is allocated.
+	 * @param executor
+	 * @param chunkSize number of objects mapped per task.
+	 * @return the array holding the mapped values.
+	 * @throws CoreException if mapping fails or is interrupted.
+	 */
+	public <R> R[] map(final Mapper<? super T, ? extends R> mapper, R[] target, ExecutorService executor,
+			int chunkSize) throws CoreException {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		if (size <= chunkSize) {
+			return map(mapper, target);
+		}
+
+		final R[] result = allocate(target);
+		final Object[] source = values;
+		List<Future<Void>> futures = new ArrayList<Future<Void>>((size + chunkSize - 1) / chunkSize);
+		for (int start = 0; start < size; start += chunkSize) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start + chunkSize, size);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				@SuppressWarnings("unchecked")
+				public Void call() {
+					for (int i = chunkStart; i < chunkEnd; i++) {
+						result[i] = mapper.map((T) source[i]);
+					}
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new CoreException(e);
+		} catch (ExecutionException e) {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			throw new CoreException(e.getCause());
+		}
+		return result;
+	}
+
+
+	/**
+	 * Gets a read-only {@link List} view of the objects, in ascending ID order.
+	 * <p/>
+	 * The view is backed by this ResultSet and does not copy the objects.
+	 * @return
+	 */
+	public List<T> asList() {
+		return new ValueList();
+	}
+
+
+	/**
+	 * Returns an array large enough to hold all objects, null-terminated like {@link List#toArray(Object[])}.
+	 * @param target
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <R> R[] allocate(R[] target) {
+		if (target.length < size) {
+			return (R[]) Array.newInstance(target.getClass().getComponentType(), size);
+		}
+		if (target.length > size) {
+			target[size] = null;
+		}
+		return target;
+	}
+
+
+	/**
+	 * A read-only list view of the values.
+	 */
+	private class ValueList extends AbstractList<T> implements RandomAccess {
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public T get(int index) {
+			if ((index < 0) || (index >= size)) {
+				throw new IndexOutOfBoundsException("index " + index + " for size " + size);
+			}
+			return (T) values[index];
+		}
+
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+
 	/**
 	 * Increases the storage allocated for the ResultSet.
 	 */
 	private void grow()	{
-		int n = IdSet.getIdealSize(size + 1);
+		int n = IdSet.getGrowthSize(ids.length);
 
 		long[] newIds = new long[n];
 		Object[] newValues = new Object[n];
 
-		System.arraycopy(ids, 0, newIds, 0, ids.length);
-		System.arraycopy(values, 0, newValues, 0, values.length);
+		System.arraycopy(ids, 0, newIds, 0, size);
+		System.arraycopy(values, 0, newValues, 0, size);
 
 		ids = newIds;
 		values = newValues;
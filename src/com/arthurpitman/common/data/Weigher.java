@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+
+/**
+ * Estimates the memory footprint of cached objects.
+ * @param <T>
+ */
+public interface Weigher<T extends IdObject> {
+
+	/**
+	 * Estimates the size of an object.
+	 * <p/>
+	 * The result must not change while the object is cached.
+	 * @param o
+	 * @return the size in bytes, at least 1.
+	 */
+	int weigh(T o);
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.common.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.arthurpitman.common.CoreException;
+import com.arthurpitman.common.Log;
+
+
+/**
+ * Buffers local storage writes of a {@link RemoteProvider} and writes them in bulk.
+ * <p/>
+ * Repeated updates of the same object are coalesced. Updates are always written before stale marks.
+ * @param <T>
+ */
+class WriteBehindBuffer<T extends IdObject> {
+
+	private static final String TAG = "WriteBehindBuffer";
+
+	private final RemoteProvider<T> provider;
+	private final int maxPending;
+	private final ScheduledExecutorService executor;
+	private final long flushDelay;
+	private final Object flushLock = new Object();
+
+	private LinkedHashMap<Long, T> updates = new LinkedHashMap<Long, T>();
+	private HashSet<Long> staleIds = new HashSet<Long>();
+	private LinkedHashMap<Long, T> flushingUpdates;
+	private HashSet<Long> flushingStaleIds;
+	private boolean flushScheduled = false;
+
+
+	/**
+	 * Creates a new WriteBehindBuffer.
+	 * @param provider the provider whose local storage is written.
+	 * @param maxPending number of pending writes that triggers a flush.
+	 * @param executor executor used for periodic flushes, or null to flush only when full or on demand.
+	 * @param flushDelay delay in milliseconds between the first pending write and a periodic flush.
+	 */
+	public WriteBehindBuffer(RemoteProvider<T> provider, int maxPending, ScheduledExecutorService executor,
+			long flushDelay) {
+		this.provider = provider;
+		this.maxPending = maxPending;
+		this.executor = executor;
+		this.flushDelay = flushDelay;
+	}
+
+
+	/**
+	 * Buffers an update of an object.
+	 * @param o
+	 * @return true if the buffer is full and should be flushed.
+	 */
+	public synchronized boolean update(T o) {
+		long id = o.getId();
+		staleIds.remove(id);
+		updates.put(id, o);
+		return afterWrite();
+	}
+
+
+	/**
+	 * Buffers updates of a set of objects.
+	 * @param set
+	 * @return true if the buffer is full and should be flushed.
+	 */
+	public synchronized boolean update(List<T> set) {
+		for (T o : set) {
+			long id = o.getId();
+			staleIds.remove(id);
+			updates.put(id, o);
+		}
+		return afterWrite();
+	}
+
+
+	/**
+	 * Buffers a stale mark.
+	 * @param id
+	 * @return true if the buffer is full and should be flushed.
+	 */
+	public synchronized boolean markStale(long id) {
+		staleIds.add(id);
+		return afterWrite();
+	}
+
+
+	/**
+	 * Buffers stale marks for a set of objects.
+	 * @param ids
+	 * @return true if the buffer is full and should be flushed.
+	 */
+	public synchronized boolean markStale(IdSet ids) {
+		int size = ids.size();
+		for (int i = 0; i < size; i++) {
+			staleIds.add(ids.get(i));
+		}
+		return afterWrite();
+	}
+
+
+	/**
+	 * Gets an object with a pending update.
+	 * @param id
+	 * @return the object or null if there is no pending update.
+	 */
+	public synchronized T getPending(long id) {
+		T o = updates.get(id);
+		if ((o == null) && (flushingUpdates != null)) {
+			o = flushingUpdates.get(id);
+		}
+		return o;
+	}
+
+
+	/**
+	 * Determines if an object has a pending stale mark.
+	 * @param id
+	 * @return
+	 */
+	public synchronized boolean isPendingStale(long id) {
+		return staleIds.contains(id) || ((flushingStaleIds != null) && flushingStaleIds.contains(id));
+	}
+
+
+	/**
+	 * Writes all pending updates and stale marks to local storage.
+	 * <p/>
+	 * If writing fails, the pending writes are kept unless they have been superseded in the meantime,
+	 * and another periodic flush is scheduled.
+	 * @throws CoreException
+	 */
+	public void flush() throws CoreException {
+		synchronized (flushLock) {
+			LinkedHashMap<Long, T> flushUpdates;
+			HashSet<Long> flushStaleIds;
+			synchronized (this) {
+				flushScheduled = false;
+				if (updates.isEmpty() && staleIds.isEmpty()) {
+					return;
+				}
+				flushUpdates = updates;
+				flushStaleIds = staleIds;
+				updates = new LinkedHashMap<Long, T>();
+				staleIds = new HashSet<Long>();
+				flushingUpdates = flushUpdates;
+				flushingStaleIds = flushStaleIds;
+			}
+
+			boolean success = false;
+			try {
+				IdSet flushIds = new IdSet(flushStaleIds.size());
+				for (Long id : flushStaleIds) {
+					flushIds.add(id);
+				}
+				provider.writeLocal(new ArrayList<T>(flushUpdates.values()), flushIds);
+				success = true;
+			} finally {
+				synchronized (this) {
+					flushingUpdates = null;
+					flushingStaleIds = null;
+					if (!success) {
+						for (Long id : flushStaleIds) {
+							if (!updates.containsKey(id)) {
+								staleIds.add(id);
+							}
+						}
+						for (T o : flushUpdates.values()) {
+							Long id = o.getId();
+							if (!updates.containsKey(id)) {
+								updates.put(id, o);
+							}
+						}
+						schedulePeriodicFlush();
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Schedules a periodic flush if necessary and determines if the buffer is full.
+	 * @return true if the buffer is full.
+	 */
+	private boolean afterWrite() {
+		schedulePeriodicFlush();
+		return updates.size() + staleIds.size() >= maxPending;
+	}
+
+
+	/**
+	 * Schedules a periodic flush, unless there is no executor or a flush is already scheduled.
+	 * <p/>
+	 * Must be called while holding the lock on this buffer.
+	 */
+	private void schedulePeriodicFlush() {
+		if ((executor == null) || flushScheduled) {
+			return;
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (CoreException e) {
+						Log.e(TAG, "exception while flushing: " + e.toString());
+					}
+				}
+			}, flushDelay, TimeUnit.MILLISECONDS);
+			flushScheduled = true;
+		} catch (RejectedExecutionException e) {
+			// pending writes are still written when the buffer is full or flushed on demand
+			Log.e(TAG, "periodic flush rejected: " + e.toString());
+		}
+	}
+}